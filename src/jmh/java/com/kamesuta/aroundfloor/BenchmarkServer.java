@@ -0,0 +1,105 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.mockbukkit.mockbukkit.MockBukkit;
+import org.mockbukkit.mockbukkit.ServerMock;
+import org.mockbukkit.mockbukkit.world.WorldMock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/**
+ * ベンチマーク用のサーバー（MockBukkitでプラグインを読み込む）
+ * <p>
+ * ワールドは source-y-min～source-y-max が石で埋まり、その上は空気になる
+ */
+final class BenchmarkServer {
+    final ServerMock server;
+    final WorldMock world;
+    final AroundFloorPlugin plugin;
+    final Config config;
+
+    // ベンチマーク用に作ったジャーナルの保存先（stop で削除する）
+    private final List<Path> journalDirectories = new ArrayList<>();
+
+    private BenchmarkServer(ServerMock server, WorldMock world, AroundFloorPlugin plugin) {
+        this.server = server;
+        this.world = world;
+        this.plugin = plugin;
+        this.config = plugin.getPluginConfig();
+    }
+
+    /**
+     * サーバーを起動し、可視化範囲と対象Y範囲を設定する
+     */
+    static BenchmarkServer start(int range, int sourceYMin, int sourceYMax) {
+        ServerMock server = MockBukkit.mock();
+        WorldMock world = new WorldMock(Material.STONE, -64, 320, sourceYMax);
+        server.addWorld(world);
+        AroundFloorPlugin plugin = MockBukkit.load(AroundFloorPlugin.class);
+
+        // 表示レイヤーは対象レイヤーの上の空気の部分に置く
+        int yOffset = sourceYMax - sourceYMin + 16;
+        FileConfiguration file = plugin.getConfig();
+        file.set("aroundfloor.visibility-range", range);
+        file.set("aroundfloor.source-y-min", sourceYMin);
+        file.set("aroundfloor.source-y-max", sourceYMax);
+        file.set("aroundfloor.y-offset", yOffset);
+        file.set("aroundfloor.display-y-min", sourceYMin + yOffset);
+        file.set("aroundfloor.display-y-max", sourceYMax + yOffset);
+        plugin.saveConfig();
+        plugin.getPluginConfig().loadConfig();
+
+        return new BenchmarkServer(server, world, plugin);
+    }
+
+    /**
+     * 中心の周囲のチャンクを読み込んでおく
+     */
+    void loadChunks(int centerX, int centerZ, int range) {
+        for (int chunkX = (centerX - range) >> 4; chunkX <= (centerX + range) >> 4; chunkX++) {
+            for (int chunkZ = (centerZ - range) >> 4; chunkZ <= (centerZ + range) >> 4; chunkZ++) {
+                world.getChunkAt(chunkX, chunkZ).load();
+            }
+        }
+    }
+
+    /**
+     * 条件を満たすまでtickを進める（ワーカースレッドの完了も待つ）
+     */
+    void tickUntil(BooleanSupplier done) {
+        while (!done.getAsBoolean()) {
+            server.getScheduler().performOneTick();
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * WorldDisplay 用の空のジャーナルの保存先（プラグイン自身のジャーナルと分ける）
+     */
+    File createJournalDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("aroundfloor-journal");
+        journalDirectories.add(directory);
+        return directory.toFile();
+    }
+
+    void stop() {
+        MockBukkit.unmock();
+        for (Path directory : journalDirectories) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            } catch (IOException e) {
+                // 一時ファイルの削除に失敗しても結果には影響しない
+            }
+        }
+        journalDirectories.clear();
+    }
+}
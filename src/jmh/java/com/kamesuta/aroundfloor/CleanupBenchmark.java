@@ -0,0 +1,72 @@
+package com.kamesuta.aroundfloor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 大量の表示ブロックがある状態での cleanup（プラグイン無効化時の一括削除）
+ * <p>
+ * WorldDisplay（パレットの読み込み）はトライアルごとに1回だけ作り、呼び出しごとに表示ブロックを置き直す。
+ * cleanup でジャーナルが閉じられるため、置き直すときに同じファイルで開き直される。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CleanupBenchmark {
+    @Param({"10000", "50000"})
+    int displayedBlocks;
+
+    private BenchmarkServer bench;
+    private WriteScheduler writeScheduler;
+    private WorldDisplay display;
+    private PlayerState state;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        bench = BenchmarkServer.start(16, -60, -45);
+        writeScheduler = new WriteScheduler(bench.plugin, bench.config, new Metrics());
+        display = new WorldDisplay(bench.plugin, bench.config, writeScheduler, new Tracer(), bench.createJournalDirectory());
+        state = new PlayerState(UUID.randomUUID(), 0);
+        state.world = bench.world;
+        state.hasCenter = true;
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        // 前回の cleanup で表示ブロックは取り除かれているため、可視化ブロックも空にしてから置き直す
+        state.visibleBlocks.clear();
+
+        // 対象Y範囲の柱を正方形に並べて表示し、書き込みまで済ませる
+        int height = bench.config.getSourceYMax() - bench.config.getSourceYMin() + 1;
+        int side = (int) Math.ceil(Math.sqrt((double) displayedBlocks / height));
+        int count = 0;
+        for (int x = 0; x < side && count < displayedBlocks; x++) {
+            for (int z = 0; z < side && count < displayedBlocks; z++) {
+                for (int y = bench.config.getSourceYMin(); y <= bench.config.getSourceYMax() && count < displayedBlocks; y++) {
+                    long sourcePos = BlockPos.pack(x, y, z);
+                    state.visibleBlocks.add(sourcePos);
+                    display.show(state, bench.world, sourcePos);
+                    count++;
+                }
+            }
+        }
+        writeScheduler.flushAll();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bench.stop();
+    }
+
+    @Benchmark
+    public void cleanup() {
+        display.cleanup(List.of(state));
+    }
+}
@@ -0,0 +1,88 @@
+package com.kamesuta.aroundfloor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 複数プレイヤーによる表示ブロックの参照カウントの増減
+ * <p>
+ * overlapping はプレイヤーの範囲がほぼ重なる配置、disjoint は重ならない配置。
+ * 書き込みは相殺されるため、ワールドへの書き込みは発生しない。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RefcountBenchmark {
+    @Param({"1", "8", "32"})
+    int players;
+
+    @Param({"overlapping", "disjoint"})
+    String layout;
+
+    @Param({"16"})
+    int range;
+
+    private BenchmarkServer bench;
+    private WriteScheduler writeScheduler;
+    private WorldDisplay display;
+    private PlayerState[] states;
+    private LongArrayList[] blocks;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        bench = BenchmarkServer.start(range, -60, -45);
+        writeScheduler = new WriteScheduler(bench.plugin, bench.config, new Metrics());
+        display = new WorldDisplay(bench.plugin, bench.config, writeScheduler, new Tracer(), bench.createJournalDirectory());
+
+        Stencil stencil = bench.config.getStencil();
+        boolean overlapping = layout.equals("overlapping");
+        states = new PlayerState[players];
+        blocks = new LongArrayList[players];
+        for (int i = 0; i < players; i++) {
+            PlayerState state = new PlayerState(UUID.randomUUID(), i);
+            state.world = bench.world;
+            state.hasCenter = true;
+            state.centerX = overlapping ? i : i * (range * 2 + 1);
+            state.centerZ = 0;
+            state.centerRange = range;
+            states[i] = state;
+
+            LongArrayList positions = new LongArrayList();
+            for (int dz = -stencil.getRange(); dz <= stencil.getRange(); dz++) {
+                int extent = stencil.getRowExtent(dz);
+                for (int dx = -extent; dx <= extent; dx++) {
+                    for (int y = bench.config.getSourceYMin(); y <= bench.config.getSourceYMax(); y++) {
+                        positions.add(BlockPos.pack(state.centerX + dx, y, state.centerZ + dz));
+                    }
+                }
+            }
+            blocks[i] = positions;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bench.stop();
+    }
+
+    @Benchmark
+    public void churn() {
+        for (int i = 0; i < players; i++) {
+            PlayerState state = states[i];
+            blocks[i].forEach(sourcePos -> display.show(state, bench.world, sourcePos));
+        }
+        for (int i = 0; i < players; i++) {
+            PlayerState state = states[i];
+            blocks[i].forEach(sourcePos -> display.hide(state, bench.world, sourcePos));
+        }
+
+        // 相殺済みの要素をキューから取り除く
+        writeScheduler.flushAll();
+    }
+}
@@ -0,0 +1,67 @@
+package com.kamesuta.aroundfloor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可視ブロックの計算（全体スキャン、索引は構築済み）
+ * <p>
+ * 可視化ブロックは前回と同じなので、差分（追加・削除）は空になる
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ScanBenchmark {
+    @Param({"8", "16", "32"})
+    int range;
+
+    // 対象Y範囲の高さ
+    @Param({"16", "64", "128"})
+    int band;
+
+    private BenchmarkServer bench;
+    private SourceIndex sourceIndex;
+    private PlayerState state;
+    private LongHashSet buffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        bench = BenchmarkServer.start(range, -60, -60 + band - 1);
+        bench.loadChunks(0, 0, range);
+        sourceIndex = new SourceIndex();
+        state = new PlayerState(UUID.randomUUID(), 0);
+        state.world = bench.world;
+
+        // 索引を構築し、結果を前回の可視化ブロックにする
+        ScanJob job = newFullScan(new LongHashSet());
+        job.compute();
+        state.visibleBlocks = job.newBlocks;
+        buffer = new LongHashSet(state.visibleBlocks.size());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bench.stop();
+    }
+
+    @Benchmark
+    public ScanJob fullScan() {
+        ScanJob job = newFullScan(buffer);
+        job.compute();
+        return job;
+    }
+
+    /**
+     * BlockManager と同じ手順で全体スキャンのジョブを作り、チャンクを用意
+     */
+    private ScanJob newFullScan(LongHashSet buffer) {
+        ScanJob job = ScanJob.createFull(state, bench.world, 0, 0, state.windowCenterY, bench.config.getStencil(), bench.config, buffer);
+        job.prepare(job.newChunkSet(sourceIndex, false));
+        return job;
+    }
+}
@@ -0,0 +1,57 @@
+package com.kamesuta.aroundfloor;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可視化範囲の円に含まれる列の列挙
+ * <p>
+ * baseline は正方形の全列で Math.sqrt(Math.pow(...)) の距離を計算して円の外を飛ばす従来のループ、
+ * stencil は事前計算した行ごとの半幅だけを辿るループ
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StencilBenchmark {
+    @Param({"16", "32", "64"})
+    int range;
+
+    private Stencil stencil;
+    private int centerX;
+    private int centerZ;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        stencil = new Stencil(range);
+        centerX = 1000;
+        centerZ = -1000;
+    }
+
+    @Benchmark
+    public void baseline(Blackhole blackhole) {
+        for (int x = centerX - range; x <= centerX + range; x++) {
+            for (int z = centerZ - range; z <= centerZ + range; z++) {
+                double distance = Math.sqrt(Math.pow(x - centerX, 2) + Math.pow(z - centerZ, 2));
+                if (distance > range) continue;
+                blackhole.consume(BlockPos.chunkKey(x, z));
+            }
+        }
+    }
+
+    @Benchmark
+    public void stencil(Blackhole blackhole) {
+        int range = stencil.getRange();
+        for (int dz = -range; dz <= range; dz++) {
+            int extent = stencil.getRowExtent(dz);
+            int z = centerZ + dz;
+            for (int x = centerX - extent; x <= centerX + extent; x++) {
+                blackhole.consume(BlockPos.chunkKey(x, z));
+            }
+        }
+    }
+}
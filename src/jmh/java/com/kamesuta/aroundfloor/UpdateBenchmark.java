@@ -0,0 +1,100 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.Location;
+import org.mockbukkit.mockbukkit.entity.PlayerMock;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * updateVisibleBlocks からスキャン結果の反映、表示ブロックの書き込みまで
+ * <p>
+ * step は1ブロックずつの往復移動（差分スキャン）、teleport は離れた2地点の往復（全体スキャン）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class UpdateBenchmark {
+    // 往復移動の片道の長さ（チャンクの索引を使い回すため）
+    private static final int STEP_SPAN = 32;
+
+    // テレポート先までの距離
+    private static final int TELEPORT_DISTANCE = 1000;
+
+    @Param({"16", "32"})
+    int range;
+
+    private BenchmarkServer bench;
+    private BlockManager blockManager;
+    private PlayerMock player;
+    private Participant participant;
+    private PlayerState state;
+    private int step;
+    private boolean teleported;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        bench = BenchmarkServer.start(range, -60, -45);
+        bench.loadChunks(0, 0, range + STEP_SPAN);
+        bench.loadChunks(TELEPORT_DISTANCE, 0, range);
+        blockManager = bench.plugin.getBlockManager();
+
+        player = bench.server.addPlayer();
+        moveTo(0);
+        // 参加時に PlayerListener が記録を作る（権限の設定によらず可視化を開始しておく）
+        participant = blockManager.getParticipants().get(player.getUniqueId());
+        if (participant == null) {
+            participant = blockManager.getParticipants().register(player);
+        }
+        if (!participant.isEnabled()) {
+            blockManager.onPlayerJoin(participant);
+        }
+        blockManager.updateVisibleBlocks(participant);
+        state = participant.state;
+        settle();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bench.stop();
+    }
+
+    @Benchmark
+    public void step() {
+        step++;
+        int phase = step % (STEP_SPAN * 2);
+        moveTo(phase < STEP_SPAN ? phase : STEP_SPAN * 2 - phase);
+        blockManager.updateVisibleBlocks(participant);
+        settle();
+    }
+
+    @Benchmark
+    public void teleport() {
+        teleported = !teleported;
+        moveTo(teleported ? TELEPORT_DISTANCE : 0);
+        blockManager.requestFullScan(participant);
+        blockManager.updateVisibleBlocks(participant);
+        settle();
+    }
+
+    private void moveTo(int x) {
+        player.setLocation(new Location(bench.world, x + 0.5, 200, 0.5));
+    }
+
+    /**
+     * スキャン結果の反映と書き込みが終わるまでtickを進める
+     */
+    private void settle() {
+        bench.tickUntil(() -> !state.scanInFlight && !state.updatePending);
+
+        // 書き込みは保留中の操作がある限り毎tick進むため、1tick進めても書き込み数が増えなくなれば終わり
+        long writes;
+        do {
+            writes = blockManager.getMetrics().writes.sum();
+            bench.server.getScheduler().performOneTick();
+        } while (blockManager.getMetrics().writes.sum() != writes);
+    }
+}
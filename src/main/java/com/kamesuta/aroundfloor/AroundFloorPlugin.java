@@ -4,14 +4,21 @@ import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
 
 public final class AroundFloorPlugin extends JavaPlugin {
     
     private Config config;
+    private Scheduling scheduling;
     private BlockManager blockManager;
     private PlayerListener playerListener;
-    private BukkitTask statisticsTask;
+    private Scheduling.Task statisticsTask;
+    private MetricsExporter metricsExporter;
 
     @Override
     public void onEnable() {
@@ -22,6 +29,12 @@ public final class AroundFloorPlugin extends JavaPlugin {
             config = new Config(this);
             getLogger().info("設定ファイルを読み込みました");
             
+            // タスクの実行先を選択（Folia ではリージョンごとのスレッド）
+            scheduling = Scheduling.create(this);
+            if (scheduling.isRegionized()) {
+                getLogger().info("Folia を検出しました。リージョンごとのスレッドで実行します");
+            }
+            
             // ブロック管理システムを初期化
             blockManager = new BlockManager(this, config);
             getLogger().info("ブロック管理システムを初期化しました");
@@ -31,11 +44,12 @@ public final class AroundFloorPlugin extends JavaPlugin {
             getServer().getPluginManager().registerEvents(playerListener, this);
             getLogger().info("プレイヤーイベントリスナーを登録しました");
             
-            // 既にオンラインの権限を持つプレイヤーを初期化
+            // 対象レイヤーのブロック変更リスナーを登録
+            getServer().getPluginManager().registerEvents(new SourceLayerListener(blockManager), this);
+            
+            // 既にオンラインのプレイヤーを記録し、権限を持つプレイヤーを初期化
             for (Player player : getServer().getOnlinePlayers()) {
-                if (player.hasPermission("aroundfloor.use")) {
-                    blockManager.onPlayerJoin(player);
-                }
+                playerListener.track(player);
             }
             
             // 統計情報の定期出力タスクを開始（デバッグモード時のみ）
@@ -43,6 +57,10 @@ public final class AroundFloorPlugin extends JavaPlugin {
                 startStatisticsTask();
             }
             
+            // 計測値のファイル出力を開始（設定時のみ）
+            metricsExporter = new MetricsExporter(this, blockManager, config);
+            metricsExporter.start();
+            
             getLogger().info("AroundFloorPlugin が正常に開始されました!");
             getLogger().info("可視化範囲: " + config.getVisibilityRange() + "ブロック");
             getLogger().info("対象Y範囲: " + config.getSourceYMin() + "～" + config.getSourceYMax());
@@ -66,6 +84,11 @@ public final class AroundFloorPlugin extends JavaPlugin {
                 statisticsTask = null;
             }
             
+            // 計測値の出力を停止
+            if (metricsExporter != null) {
+                metricsExporter.stop();
+            }
+            
             // プレイヤーリスナーをクリーンアップ
             if (playerListener != null) {
                 playerListener.cleanup();
@@ -105,7 +128,21 @@ public final class AroundFloorPlugin extends JavaPlugin {
             case "reload":
                 return handleReloadCommand(sender);
             case "stats":
+                if (args.length >= 2) {
+                    switch (args[1].toLowerCase()) {
+                        case "timings":
+                            return handleTimingsCommand(sender);
+                        case "players":
+                            return handlePlayerStatsCommand(sender);
+                        case "reset":
+                            blockManager.getMetrics().reset();
+                            sender.sendMessage("§a計測値をリセットしました");
+                            return true;
+                    }
+                }
                 return handleStatsCommand(sender);
+            case "trace":
+                return handleTraceCommand(sender, args);
             case "help":
                 sendHelpMessage(sender);
                 return true;
@@ -121,8 +158,13 @@ public final class AroundFloorPlugin extends JavaPlugin {
             sender.sendMessage("§e設定を再読み込みしています...");
             
             // 設定を再読み込み
+            Config.Layout previousLayout = config.getLayout();
             config.loadConfig();
             
+            // 表示位置が変わったブロックを置き直し、可視化範囲などの変化は全体再スキャンで反映（予算内で順に行う）
+            blockManager.onConfigReloaded(previousLayout);
+            playerListener.rescanAll();
+            
             // 統計タスクを再起動（デバッグモード変更に対応）
             if (statisticsTask != null) {
                 statisticsTask.cancel();
@@ -132,6 +174,12 @@ public final class AroundFloorPlugin extends JavaPlugin {
                 startStatisticsTask();
             }
             
+            // 計測値の出力を再起動（間隔の変更に対応）
+            metricsExporter.start();
+            
+            // トレースのバッファとサンプリングを更新
+            blockManager.getTracer().configure(config);
+            
             sender.sendMessage("§a設定の再読み込みが完了しました！");
             sender.sendMessage("§f可視化範囲: §e" + config.getVisibilityRange() + "ブロック");
             sender.sendMessage("§f対象Y範囲: §e" + config.getSourceYMin() + "～" + config.getSourceYMax());
@@ -151,9 +199,11 @@ public final class AroundFloorPlugin extends JavaPlugin {
         try {
             sender.sendMessage("§e=== AroundFloor統計情報 ===");
             sender.sendMessage("§f" + blockManager.getStatistics());
+            sender.sendMessage("§f" + blockManager.getBudgetStatistics());
             sender.sendMessage("§fオンラインプレイヤー数: §e" + getServer().getOnlinePlayers().size());
             sender.sendMessage("§f可視化範囲: §e" + config.getVisibilityRange() + "ブロック");
             sender.sendMessage("§f更新間隔: §e" + config.getUpdateInterval() + "tick");
+            sender.sendMessage("§f表示モード: §e" + config.getDisplayMode());
             sender.sendMessage("§fデバッグモード: §e" + (config.isDebug() ? "有効" : "無効"));
             sender.sendMessage("§e========================");
             
@@ -170,17 +220,81 @@ public final class AroundFloorPlugin extends JavaPlugin {
         }
     }
     
+    private boolean handleTimingsCommand(CommandSender sender) {
+        Metrics metrics = blockManager.getMetrics();
+        sender.sendMessage("§e=== AroundFloor計測値 ===");
+        sender.sendMessage(String.format("§fスキャン: 全体 §e%d§f, 差分 §e%d§f, 破棄 §e%d§f (まとめて走査 §e%d§f, 先読みしたチャンク §e%d§f, 内側の範囲で省略 §e%d§f) / 書き込み: §e%d§f / 対象ブロックの変更: §e%d",
+            metrics.fullScans.sum(), metrics.deltaScans.sum(), metrics.discardedScans.sum(), metrics.clusteredScans.sum(), metrics.prefetchedChunks.sum(), metrics.innerCoveredUpdates.sum(), metrics.writes.sum(), metrics.sourceChanges.sum()));
+        for (Metrics.Series s : metrics.getSeries()) {
+            Histogram h = s.histogram;
+            sender.sendMessage(String.format("§f%s: §7n=%d §fp50 §e%s §fp99 §e%s §fmax §e%s",
+                s.name, h.getCount(),
+                Metrics.format(s, h.getPercentile(50)),
+                Metrics.format(s, h.getPercentile(99)),
+                Metrics.format(s, h.getMax())));
+        }
+        sender.sendMessage("§e========================");
+        return true;
+    }
+    
+    private boolean handlePlayerStatsCommand(CommandSender sender) {
+        sender.sendMessage("§e=== AroundFloorプレイヤー別統計 ===");
+        for (String line : blockManager.getPlayerStatistics()) {
+            sender.sendMessage("§f" + line);
+        }
+        sender.sendMessage("§e========================");
+        return true;
+    }
+    
+    private boolean handleTraceCommand(CommandSender sender, String[] args) {
+        String action = args.length >= 2 ? args[1].toLowerCase() : "";
+        switch (action) {
+            case "dump": {
+                // 複製はコマンドのスレッド、整形と書き込みは非同期で行う
+                Tracer.Snapshot snapshot = blockManager.getTracer().snapshot();
+                Map<Integer, String> slotNames = blockManager.getSlotNames();
+                File file = new File(getDataFolder(), "trace-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".txt");
+                scheduling.runAsync(() -> {
+                    String message;
+                    try {
+                        getDataFolder().mkdirs();
+                        snapshot.writeTo(file.toPath(), slotNames);
+                        message = "§aトレースを出力しました: " + file.getName() + " (" + snapshot.size() + "件)";
+                    } catch (IOException e) {
+                        message = "§cトレースの出力中にエラーが発生しました: " + e.getMessage();
+                        getLogger().warning("トレース出力エラー: " + e.getMessage());
+                    }
+                    String result = message;
+                    scheduling.runGlobal(() -> sender.sendMessage(result));
+                });
+                return true;
+            }
+            case "clear":
+                blockManager.getTracer().clear();
+                sender.sendMessage("§aトレースを破棄しました");
+                return true;
+            default:
+                sender.sendMessage("§c使い方: /aroundfloor trace <dump|clear>");
+                return true;
+        }
+    }
+    
     private void sendHelpMessage(CommandSender sender) {
         sender.sendMessage("§e=== AroundFloorPlugin ヘルプ ===");
         sender.sendMessage("§f/aroundfloor reload §7- 設定を再読み込み");
         sender.sendMessage("§f/aroundfloor stats §7- 統計情報を表示");
+        sender.sendMessage("§f/aroundfloor stats timings §7- 処理時間の計測値を表示（p50/p99/max）");
+        sender.sendMessage("§f/aroundfloor stats players §7- プレイヤー別の統計情報を表示");
+        sender.sendMessage("§f/aroundfloor stats reset §7- 計測値をリセット");
+        sender.sendMessage("§f/aroundfloor trace dump §7- トレースをファイルに出力");
+        sender.sendMessage("§f/aroundfloor trace clear §7- トレースを破棄");
         sender.sendMessage("§f/aroundfloor help §7- このヘルプを表示");
         sender.sendMessage("§7エイリアス: /af");
         sender.sendMessage("§e============================");
     }
     
     private void startStatisticsTask() {
-        statisticsTask = getServer().getScheduler().runTaskTimer(this, () -> {
+        statisticsTask = scheduling.runGlobalTimer(() -> {
             if (playerListener != null) {
                 playerListener.printStatistics();
             }
@@ -192,6 +306,10 @@ public final class AroundFloorPlugin extends JavaPlugin {
         return config;
     }
     
+    Scheduling getScheduling() {
+        return scheduling;
+    }
+    
     public BlockManager getBlockManager() {
         return blockManager;
     }
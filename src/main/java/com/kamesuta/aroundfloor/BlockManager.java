@@ -3,270 +3,899 @@ package com.kamesuta.aroundfloor;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.World;
-import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * プレイヤーごとの可視化状態と表示の管理
+ * <p>
+ * Paper ではすべてメインスレッドで実行する。Folia ではプレイヤーの更新・スキャン結果の反映はプレイヤーを所有する
+ * リージョンのスレッドで行い（PlayerState はそのスレッドだけが触る）、表示状態は WorldDisplay が区画ごとのロックで保護する。
+ * 対象ブロックの変更・チャンクの読み込みはリージョンから受け取り、グローバルリージョンでまとめてから各プレイヤーのスレッドに配る。
+ */
 public class BlockManager {
+    // 先読みを行う最低の移動速度（ブロック/tick、歩き程度）
+    private static final double MIN_PREFETCH_SPEED = 0.1;
+
+    // ピストンで動くブロックが移動先に止まるまでのtick数（動いている間の2tickに余裕を持たせる）
+    private static final long PISTON_SETTLE_TICKS = 3L;
+
     private final AroundFloorPlugin plugin;
     private final Config config;
-    
-    // プレイヤーごとの可視化ブロック管理
-    private final Map<UUID, Set<Location>> playerVisibleBlocks;
-    
-    // y=50～HEIGHTでの表示ブロック管理（どのプレイヤーが参照しているかをカウント）
-    private final Map<Location, Set<UUID>> displayedBlocks;
-    
-    // プレイヤーの前回位置（最適化用）
-    private final Map<UUID, Location> lastPlayerLocations;
-    
+
+    // タスクの実行先（Paper: メインスレッド、Folia: リージョンごと）
+    private final Scheduling scheduling;
+
+    // オンラインのプレイヤーの記録（可視化状態は記録が持ち、スロット番号で引く）
+    private final ParticipantRegistry participants;
+
+    // 表示ブロックの書き込みをtickごとに予算内で実行するスケジューラー
+    private final WriteScheduler writeScheduler;
+
+    // 可視化ブロック数の上限と負荷による範囲の縮小
+    private final DisplayBudget displayBudget;
+
+    // 表示レイヤーへの反映方法（ワールド書き換え or パケット）
+    private final DisplayBackend displayBackend;
+
+    // 対象レイヤーの索引（ワールドごと）
+    private final Map<UUID, SourceIndex> sourceIndexes;
+
+    // 前tickに変化した対象ブロック（ワールドごと、changedSourceBlocks で同期）
+    private final Map<UUID, LongHashSet> changedSourceBlocks;
+    private boolean sourceChangeTaskScheduled;
+
+    // 前tickに読み込まれたチャンク（ワールドごと、loadedChunks で同期）
+    private final Map<UUID, LongHashSet> loadedChunks;
+    private boolean chunkLoadTaskScheduled;
+
+    // 可視化範囲スキャン用のワーカースレッド
+    private final ExecutorService scanExecutor;
+
+    // まとめて実行するまで保留しているスキャン（beginBatch～endBatch の間のみ非null）
+    private List<ScanJob> batchedJobs;
+
+    // ホットパスの計測値
+    private final Metrics metrics;
+
+    // トレース（メインスレッドのイベントを記録）
+    private final Tracer tracer;
+
     public BlockManager(AroundFloorPlugin plugin, Config config) {
         this.plugin = plugin;
         this.config = config;
-        this.playerVisibleBlocks = new ConcurrentHashMap<>();
-        this.displayedBlocks = new ConcurrentHashMap<>();
-        this.lastPlayerLocations = new ConcurrentHashMap<>();
+        this.scheduling = plugin.getScheduling();
+        this.participants = new ParticipantRegistry();
+        this.sourceIndexes = new ConcurrentHashMap<>();
+        this.changedSourceBlocks = new HashMap<>();
+        this.loadedChunks = new HashMap<>();
+        this.metrics = new Metrics();
+        this.tracer = new Tracer();
+        tracer.configure(config);
+        this.writeScheduler = new WriteScheduler(plugin, config, metrics);
+        this.displayBackend = config.getDisplayMode() == Config.DisplayMode.PACKET
+            ? new PacketDisplay(plugin, config, writeScheduler, tracer)
+            : new WorldDisplay(plugin, config, writeScheduler, tracer, new File(plugin.getDataFolder(), "journal"));
+        writeScheduler.start();
+        displayBackend.recover();
+        this.displayBudget = new DisplayBudget(plugin, config, participants::getEnabledCount,
+            this::getTotalVisibleBlocks, () -> displayBackend.getDisplayedBlockCount(participants.getStates()));
+        displayBudget.start();
+
+        AtomicInteger threadId = new AtomicInteger();
+        this.scanExecutor = Executors.newFixedThreadPool(config.getScanThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "AroundFloor-Scan-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
-    
+
     /**
      * プレイヤー周囲のブロックを更新
+     * <p>
+     * スキャンはワーカースレッドで行われ、結果は次tick以降にメインスレッド（Folia ではプレイヤーのスレッド）で反映される。
+     * 呼び出しの頻度は UpdateScheduler が制御する（中心の列が変わっていなければ何もしない）
      */
-    public void updateVisibleBlocks(Player player) {
-        UUID playerId = player.getUniqueId();
-        Location currentLocation = player.getLocation();
-        
-        // 移動距離チェック（最適化）
-        Location lastLocation = lastPlayerLocations.get(playerId);
-        if (lastLocation != null && currentLocation.distanceSquared(lastLocation) < 1.0) {
-            return; // 1ブロック未満の移動は無視
-        }
-        
-        lastPlayerLocations.put(playerId, currentLocation.clone());
-        
-        // 現在の可視化ブロックを取得
-        Set<Location> currentVisibleBlocks = playerVisibleBlocks.computeIfAbsent(playerId, k -> new HashSet<>());
-        
-        // 新しい可視化範囲のブロックを計算
-        Set<Location> newVisibleBlocks = calculateVisibleBlocks(currentLocation);
-        
-        // 新たに範囲内に入ったブロック
-        Set<Location> blocksToAdd = new HashSet<>(newVisibleBlocks);
-        blocksToAdd.removeAll(currentVisibleBlocks);
-        
-        // 範囲外に出たブロック
-        Set<Location> blocksToRemove = new HashSet<>(currentVisibleBlocks);
-        blocksToRemove.removeAll(newVisibleBlocks);
-        
-        // ブロックを追加
-        for (Location sourceLocation : blocksToAdd) {
-            copyBlockToDisplay(sourceLocation, playerId);
-        }
-        
-        // ブロックを削除
-        for (Location sourceLocation : blocksToRemove) {
-            removeBlockFromDisplay(sourceLocation, playerId);
-        }
-        
-        // プレイヤーの可視化ブロックリストを更新
-        playerVisibleBlocks.put(playerId, newVisibleBlocks);
-        
-        if (config.isDebug()) {
-            plugin.getLogger().info(player.getName() + "の可視化ブロック更新: 追加=" + blocksToAdd.size() + ", 削除=" + blocksToRemove.size());
-        }
-    }
-    
-    /**
-     * プレイヤーの可視化範囲内のブロックを計算
-     */
-    private Set<Location> calculateVisibleBlocks(Location playerLocation) {
-        Set<Location> visibleBlocks = new HashSet<>();
-        World world = playerLocation.getWorld();
-        
-        if (world == null) return visibleBlocks;
-        
-        int range = config.getVisibilityRange();
-        int centerX = playerLocation.getBlockX();
-        int centerZ = playerLocation.getBlockZ();
-        
-        // 円形範囲でスキャン
-        for (int x = centerX - range; x <= centerX + range; x++) {
-            for (int z = centerZ - range; z <= centerZ + range; z++) {
-                // 距離チェック
-                double distance = Math.sqrt(Math.pow(x - centerX, 2) + Math.pow(z - centerZ, 2));
-                if (distance > range) continue;
-                
-                // Y範囲でスキャン
-                for (int y = config.getSourceYMin(); y <= config.getSourceYMax(); y++) {
-                    Location sourceLocation = new Location(world, x, y, z);
-                    Block block = world.getBlockAt(sourceLocation);
-                    
-                    // 空気ブロックは無視
-                    if (block.getType() == Material.AIR) continue;
-                    
-                    // チャンクが読み込まれているかチェック
-                    if (!world.isChunkLoaded(x >> 4, z >> 4)) continue;
-                    
-                    visibleBlocks.add(sourceLocation);
+    void updateVisibleBlocks(Participant participant) {
+        PlayerState state = participant.state;
+        if (state == null) return;
+
+        Location currentLocation = participant.player.getLocation();
+        World world = currentLocation.getWorld();
+        if (world == null) return;
+
+        tracer.record(Tracer.Type.UPDATE, BlockPos.pack(currentLocation.getBlockX(), currentLocation.getBlockY(), currentLocation.getBlockZ()), state.slot, 0);
+
+        // ワールドが変わった場合は前のワールドの表示をすべて削除し、実行中のスキャン結果を破棄
+        if (state.world != null && !world.equals(state.world)) {
+            removeAllFromDisplay(state);
+            state.generation++;
+        }
+        state.world = world;
+
+        requestScan(state, currentLocation);
+    }
+
+    /**
+     * スキャンを要求（実行中であれば完了後に再実行する）
+     */
+    private void requestScan(PlayerState state, Location location) {
+        prefetch(state, location);
+
+        if (state.scanInFlight) {
+            state.updatePending = true;
+            return;
+        }
+        state.updatePending = false;
+
+        // 先読みの余白がある場合は中心を移動方向にずらす（ずらす距離は余白以下なので、プレイヤーの可視化範囲は常に含まれる）
+        int centerX = location.getBlockX();
+        int centerZ = location.getBlockZ();
+        int margin = config.getLookaheadMargin();
+        if (margin > 0) {
+            double offsetX = state.velocityX * config.getLookaheadTicks();
+            double offsetZ = state.velocityZ * config.getLookaheadTicks();
+            double length = Math.sqrt(offsetX * offsetX + offsetZ * offsetZ);
+            if (length > margin) {
+                offsetX *= margin / length;
+                offsetZ *= margin / length;
+            }
+            // 0に向けて切り捨てる（余白を超えないように）
+            centerX += (int) offsetX;
+            centerZ += (int) offsetZ;
+        }
+        // 可視化ブロック数の割り当てとサーバーの負荷で狭めた範囲
+        Stencil stencil = config.getStencil(displayBudget.getRange(state));
+        int range = stencil.getRange();
+
+        // 縦の窓の中心（プレイヤーの足元に対応する対象レイヤーのY）
+        // ジャンプや段差のたびに全体スキャンにならないよう、窓の1/4を超えて上下に動いたときだけ動かす
+        int window = config.getVerticalWindow();
+        int windowCenterY = state.windowCenterY;
+        if (window > 0) {
+            int sourceY = location.getBlockY() - config.getYOffset();
+            if (!state.hasCenter || state.centerWindow != window || Math.abs(sourceY - windowCenterY) > window / 4) {
+                windowCenterY = sourceY;
+            }
+        }
+
+        // テレポート・範囲変更・範囲を超える移動・縦の窓の移動の場合は全体スキャン、それ以外は差分スキャン
+        boolean fullScan = state.forceFullScan || !state.hasCenter || state.centerRange != range
+            || state.centerWindow != window || state.windowCenterY != windowCenterY;
+        if (!fullScan) {
+            int dx = centerX - state.centerX;
+            int dz = centerZ - state.centerZ;
+            if (dx == 0 && dz == 0) return; // 中心の列が変わっていない
+
+            // プレイヤーの周りの内側の範囲が前回の円に収まっている間は、外側の範囲を動かさない
+            if (isInnerRangeCovered(state, location, range)) {
+                metrics.innerCoveredUpdates.increment();
+                return;
+            }
+            fullScan = !stencil.contains(dx, dz);
+        }
+
+        ScanJob job;
+        if (fullScan) {
+            // 前回のバッファを再利用（破棄されたスキャンが持っていった場合は新規作成）
+            LongHashSet buffer = state.scratchBlocks != null ? state.scratchBlocks : new LongHashSet(state.visibleBlocks.size());
+            state.scratchBlocks = null;
+            job = ScanJob.createFull(state, location.getWorld(), centerX, centerZ, windowCenterY, stencil, config, buffer);
+        } else {
+            job = ScanJob.createDelta(state, location.getWorld(), centerX, centerZ, stencil, config);
+        }
+        state.scanInFlight = true;
+
+        // まとめて実行する場合は endBatch まで保留
+        if (batchedJobs != null) {
+            batchedJobs.add(job);
+            return;
+        }
+        dispatch(job);
+    }
+
+    /**
+     * 内側の範囲（プレイヤーを中心とする円）が前回スキャンした円に含まれているか
+     * <p>
+     * 前回の中心からの距離が「範囲 - 内側の範囲」以内であれば含まれる。
+     * 内側の範囲はプレイヤーが動いても常に表示済みで、外側はこの余裕を使い切ったときにまとめて動かす。
+     */
+    private boolean isInnerRangeCovered(PlayerState state, Location location, int range) {
+        int innerRadius = config.getInnerRadius();
+        if (innerRadius <= 0) return false;
+
+        int slack = range - innerRadius;
+        if (slack <= 0) return false;
+
+        int dx = location.getBlockX() - state.centerX;
+        int dz = location.getBlockZ() - state.centerZ;
+        return dx * dx + dz * dz <= slack * slack;
+    }
+
+    /**
+     * 移動先の予測位置の周りで索引のないチャンクを、スキャンより先にワーカースレッドで構築する
+     * <p>
+     * 速く移動しているプレイヤーのスキャンで、範囲に入ったチャンクの索引の構築をまとめて待たないようにする
+     */
+    private void prefetch(PlayerState state, Location location) {
+        int ticks = config.getLookaheadTicks();
+        if (ticks <= 0) return;
+
+        double velocityX = state.velocityX;
+        double velocityZ = state.velocityZ;
+        if (velocityX * velocityX + velocityZ * velocityZ < MIN_PREFETCH_SPEED * MIN_PREFETCH_SPEED) return;
+
+        World world = location.getWorld();
+        int predictedX = (int) Math.floor(location.getX() + velocityX * ticks);
+        int predictedZ = (int) Math.floor(location.getZ() + velocityZ * ticks);
+        ScanJob.ChunkSet chunks = ScanJob.preparePrefetch(world, predictedX, predictedZ, config, getSourceIndex(world), scheduling.isRegionized());
+        if (chunks == null) return;
+
+        metrics.prefetchedChunks.add(chunks.getMissingIndexCount());
+        scanExecutor.execute(chunks::buildMissingIndexes);
+    }
+
+    /**
+     * 単独でスキャンを実行
+     */
+    private void dispatch(ScanJob job) {
+        job.prepare(job.newChunkSet(getSourceIndex(job.world), scheduling.isRegionized()));
+        scanExecutor.execute(() -> {
+            try {
+                job.compute();
+            } catch (Throwable e) {
+                job.error = e;
+            }
+            scheduleApply(List.of(job));
+        });
+    }
+
+    /**
+     * スキャン結果の反映をメインスレッド（Folia ではプレイヤーのスレッド）に依頼（ワーカースレッドで呼ぶ）
+     */
+    private void scheduleApply(List<ScanJob> jobs) {
+        // 無効化後は結果を破棄
+        if (!plugin.isEnabled()) return;
+        try {
+            if (!scheduling.isRegionized()) {
+                scheduling.runGlobal(() -> jobs.forEach(this::applyScanResult));
+                return;
+            }
+            for (ScanJob job : jobs) {
+                // 退出済みのプレイヤーの結果は破棄
+                Participant participant = participants.get(job.state.slot);
+                if (participant != null && participant.state == job.state) {
+                    scheduling.runForEntity(participant.player, () -> applyScanResult(job));
                 }
             }
+        } catch (IllegalStateException e) {
+            // 無効化と競合した場合（IllegalPluginAccessException）
         }
-        
-        return visibleBlocks;
     }
-    
+
     /**
-     * y=-50～HEIGHTからy=50～HEIGHTへのブロックコピー
+     * これ以降のスキャン要求を保留し、endBatch でまとめて実行する
+     * <p>
+     * Folia ではスキャン要求がプレイヤーごとのスレッドから届くため、まとめない
      */
-    private void copyBlockToDisplay(Location sourceLocation, UUID playerId) {
-        World world = sourceLocation.getWorld();
-        if (world == null) return;
-        
-        // 表示Y座標を計算
-        int displayY = config.calculateDisplayY(sourceLocation.getBlockY());
-        
-        // 表示範囲外の場合は無視
-        if (!config.isInDisplayRange(displayY)) return;
-        
-        Location displayLocation = new Location(world, sourceLocation.getX(), displayY, sourceLocation.getZ());
-        
-        // 既に他のプレイヤーが参照している場合はカウントを増やすだけ
-        Set<UUID> referencingPlayers = displayedBlocks.computeIfAbsent(displayLocation, k -> new HashSet<>());
-        referencingPlayers.add(playerId);
-        
-        // 初回の場合のみブロックを実際にコピー
-        if (referencingPlayers.size() == 1) {
-            Block sourceBlock = world.getBlockAt(sourceLocation);
-            Block displayBlock = world.getBlockAt(displayLocation);
-            
-            // ブロックをコピー
-            displayBlock.setType(sourceBlock.getType());
-            if (sourceBlock.getBlockData() != null) {
-                displayBlock.setBlockData(sourceBlock.getBlockData());
+    void beginBatch() {
+        if (scheduling.isRegionized()) return;
+        if (batchedJobs == null) {
+            batchedJobs = new ArrayList<>();
+        }
+    }
+
+    /**
+     * 保留したスキャンを実行
+     * <p>
+     * 同じワールドで可視化範囲を囲むチャンクが重なるプレイヤーを1つのクラスタにまとめ、
+     * 重なる列を1回だけ走査する（ScanCluster）。単独のプレイヤーは通常どおり実行する。
+     */
+    void endBatch() {
+        List<ScanJob> jobs = batchedJobs;
+        batchedJobs = null;
+        if (jobs == null || jobs.isEmpty()) return;
+        if (jobs.size() == 1) {
+            dispatch(jobs.get(0));
+            return;
+        }
+
+        // チャンク範囲が重なるジョブを Union-Find でまとめる
+        int[] parent = new int[jobs.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            ScanJob a = jobs.get(i);
+            for (int j = i + 1; j < jobs.size(); j++) {
+                ScanJob b = jobs.get(j);
+                if (a.world.equals(b.world) && a.yMin == b.yMin && a.yMax == b.yMax
+                    && a.getMinChunkX() <= b.getMaxChunkX() && b.getMinChunkX() <= a.getMaxChunkX()
+                    && a.getMinChunkZ() <= b.getMaxChunkZ() && b.getMinChunkZ() <= a.getMaxChunkZ()) {
+                    parent[findRoot(parent, i)] = findRoot(parent, j);
+                }
+            }
+        }
+        Map<Integer, List<ScanJob>> clusters = new LinkedHashMap<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            clusters.computeIfAbsent(findRoot(parent, i), root -> new ArrayList<>()).add(jobs.get(i));
+        }
+
+        for (List<ScanJob> members : clusters.values()) {
+            if (members.size() == 1) {
+                dispatch(members.get(0));
+                continue;
+            }
+
+            // チャンクの索引を共有する
+            ScanJob first = members.get(0);
+            ScanJob.ChunkSet chunks = first.newChunkSet(getSourceIndex(first.world), false);
+            for (ScanJob job : members) {
+                job.prepare(chunks);
             }
-            
+            metrics.clusteredScans.add(members.size());
+
+            ScanCluster cluster = new ScanCluster(members, chunks);
+            scanExecutor.execute(() -> {
+                cluster.compute();
+                scheduleApply(members);
+            });
+        }
+    }
+
+    private static int findRoot(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * スキャン結果を反映（メインスレッド、Folia ではプレイヤーのスレッド）
+     */
+    private void applyScanResult(ScanJob job) {
+        PlayerState state = job.state;
+        state.scanInFlight = false;
+
+        // 退出済み、または可視化を終了・開始し直したプレイヤー
+        Participant participant = participants.get(state.slot);
+        if (participant == null || participant.state != state) return;
+        Player player = participant.player;
+
+        if (job.error != null) {
+            plugin.getLogger().warning("プレイヤー " + player.getName() + " のスキャン中にエラーが発生しました: " + job.error.getMessage());
             if (config.isDebug()) {
-                plugin.getLogger().info("ブロックコピー: " + sourceLocation + " → " + displayLocation + " (Type: " + sourceBlock.getType() + ")");
+                job.error.printStackTrace();
+            }
+        } else if (isScanResultCurrent(job, player)) {
+            long applyStart = System.nanoTime();
+            World world = job.world;
+
+            // 中心を更新（書き込みの優先度はこの中心からの距離で決まる）
+            state.hasCenter = true;
+            state.centerX = job.centerX;
+            state.centerZ = job.centerZ;
+            state.centerRange = job.range;
+            state.windowCenterY = job.windowCenterY;
+            state.centerWindow = job.window;
+
+            // 新たに範囲内に入ったブロックを追加
+            displayBackend.showBatch(state, world, job.blocksToAdd);
+            job.blocksToAdd.forEach(sourcePos -> tracer.record(Tracer.Type.SHOW, sourcePos, state.slot, 0));
+
+            // 範囲外に出たブロックを削除
+            displayBackend.hideBatch(state, world, job.blocksToRemove);
+            job.blocksToRemove.forEach(sourcePos -> tracer.record(Tracer.Type.HIDE, sourcePos, state.slot, 0));
+
+            // プレイヤーの可視化ブロックリストを更新
+            if (job.fullScan) {
+                // バッファを入れ替え
+                LongHashSet oldBlocks = state.visibleBlocks;
+                state.visibleBlocks = job.newBlocks;
+                oldBlocks.clear();
+                state.scratchBlocks = oldBlocks;
+                state.forceFullScan = false;
+            } else {
+                // 差分をその場で反映
+                job.blocksToAdd.forEach(state.visibleBlocks::add);
+                job.blocksToRemove.forEach(state.visibleBlocks::remove);
+            }
+
+            // 読み込まれていないチャンクを飛ばした場合は次回全体スキャンで補う
+            if (job.skippedUnloadedChunk) {
+                state.forceFullScan = true;
+            }
+
+            // 可視化ブロック数が割り当てを超えた場合は範囲を狭め、すぐに再スキャンして遠いブロックから外す
+            if (displayBudget.fitToShare(state, job.range, state.visibleBlocks.size())) {
+                state.updatePending = true;
+            }
+
+            // 計測値を記録
+            long applyTime = System.nanoTime() - applyStart;
+            metrics.recordScan(job, applyTime);
+            long scanTime = job.scanNanos + job.diffNanos + applyTime;
+            state.scanCount++;
+            state.scanNanosTotal += scanTime;
+            state.scanNanosMax = Math.max(state.scanNanosMax, scanTime);
+            state.lastScannedBlocks = job.scannedBlocks;
+
+            tracer.record(job.fullScan ? Tracer.Type.SCAN_FULL : Tracer.Type.SCAN_DELTA, BlockPos.pack(job.centerX, 0, job.centerZ), state.slot,
+                ((long) job.blocksToAdd.size() << 32) | job.blocksToRemove.size());
+        } else {
+            // 古い結果は破棄して再スキャン
+            metrics.discardedScans.increment();
+            tracer.record(Tracer.Type.SCAN_DISCARDED, BlockPos.pack(job.centerX, 0, job.centerZ), state.slot, 0);
+            state.updatePending = true;
+        }
+
+        // スキャン中に変化した対象ブロックを反映
+        if (!state.pendingSourceChanges.isEmpty()) {
+            if (state.hasCenter) {
+                World world = state.world;
+                state.pendingSourceChanges.forEach(sourcePos -> {
+                    if (isInPlayerRange(state, sourcePos)) {
+                        mirrorSourceChange(state, world, sourcePos);
+                    }
+                });
+            }
+            state.pendingSourceChanges.clear();
+        }
+
+        if (state.updatePending) {
+            requestScan(state, player.getLocation());
+        }
+    }
+
+    /**
+     * スキャン結果がまだ有効か（ワールド変更・大きな移動・チャンクのアンロードがないか）
+     */
+    private boolean isScanResultCurrent(ScanJob job, Player player) {
+        PlayerState state = job.state;
+        if (state.generation != job.generation || !job.world.equals(state.world)) return false;
+
+        Location location = player.getLocation();
+        if (!job.world.equals(location.getWorld())) return false;
+
+        int dx = location.getBlockX() - job.centerX;
+        int dz = location.getBlockZ() - job.centerZ;
+        if (!config.getStencil(job.range).contains(dx, dz)) return false;
+
+        return job.isChunksStillLoaded();
+    }
+
+    /**
+     * プレイヤーが参照しているブロックをすべて表示から外す
+     */
+    private void removeAllFromDisplay(PlayerState state) {
+        if (state.world == null) return;
+
+        displayBackend.hideAll(state);
+
+        // ワーカーが読み取り中の可能性があるため、クリアせずに新しいセットへ差し替える
+        state.visibleBlocks = new LongHashSet();
+        state.hasCenter = false;
+    }
+
+    private SourceIndex getSourceIndex(World world) {
+        return sourceIndexes.computeIfAbsent(world.getUID(), k -> new SourceIndex());
+    }
+
+    /**
+     * 対象レイヤーのブロックが変化した（索引を破棄し、次tickで表示に反映する）
+     * <p>
+     * イベントはブロックの変化前に呼ばれるため、反映は次tickに行う
+     */
+    public void onSourceBlockChanged(World world, int x, int y, int z) {
+        if (!config.isInSourceRange(y)) return;
+
+        SourceIndex sourceIndex = sourceIndexes.get(world.getUID());
+        if (sourceIndex != null) {
+            sourceIndex.invalidate(BlockPos.chunkKey(x >> 4, z >> 4));
+        }
+
+        synchronized (changedSourceBlocks) {
+            changedSourceBlocks.computeIfAbsent(world.getUID(), k -> new LongHashSet()).add(BlockPos.pack(x, y, z));
+            if (!sourceChangeTaskScheduled) {
+                sourceChangeTaskScheduled = true;
+                scheduling.runGlobal(this::applySourceChanges);
+            }
+        }
+    }
+
+    /**
+     * ピストンで対象レイヤーのブロックが動いた（移動元・移動先とピストンのヘッドの位置）
+     * <p>
+     * 移動先は動いている間 MOVING_PISTON になり、動き終わって止まったときにはイベントが来ないため、
+     * 止まった後にもう一度変化したものとして扱う
+     */
+    public void onSourceBlocksMoved(World world, LongArrayList positions) {
+        positions.forEach(pos -> onSourceBlockChanged(world, BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos)));
+        scheduling.runGlobalLater(() -> positions.forEach(pos ->
+            onSourceBlockChanged(world, BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos))), PISTON_SETTLE_TICKS);
+    }
+
+    /**
+     * 前tickに変化した対象ブロックを、範囲内のプレイヤーの表示に反映
+     */
+    private void applySourceChanges() {
+        Map<UUID, LongHashSet> changes;
+        synchronized (changedSourceBlocks) {
+            sourceChangeTaskScheduled = false;
+            changes = new HashMap<>(changedSourceBlocks);
+            changedSourceBlocks.clear();
+        }
+
+        for (Map.Entry<UUID, LongHashSet> entry : changes.entrySet()) {
+            World world = plugin.getServer().getWorld(entry.getKey());
+            if (world == null) continue;
+
+            LongHashSet positions = entry.getValue();
+            metrics.sourceChanges.add(positions.size());
+            positions.forEach(sourcePos -> tracer.record(Tracer.Type.SOURCE_CHANGE, sourcePos, Tracer.NO_SLOT, 0));
+
+            // 可視化状態はプレイヤーのスレッドで変更する（Paper ではその場で実行）
+            for (Participant participant : participants.getParticipants()) {
+                PlayerState state = participant != null ? participant.state : null;
+                if (state == null || !state.hasCenter || !world.equals(state.world)) continue;
+                scheduling.runForEntity(participant.player, () -> mirrorSourceChanges(state, world, positions));
+            }
+        }
+    }
+
+    /**
+     * 変化した対象ブロックのうち、プレイヤーの可視化範囲内のものを表示に反映
+     */
+    private void mirrorSourceChanges(PlayerState state, World world, LongHashSet positions) {
+        if (!state.hasCenter || !world.equals(state.world)) return;
+
+        positions.forEach(sourcePos -> {
+            if (!isInPlayerRange(state, sourcePos)) return;
+
+            if (state.scanInFlight) {
+                // スキャン中の可視化ブロックは変更できないため、反映後に処理する
+                state.pendingSourceChanges.add(sourcePos);
+            } else {
+                mirrorSourceChange(state, world, sourcePos);
             }
+        });
+    }
+
+    /**
+     * 対象ブロックの現在の内容をプレイヤーの表示に反映（追加・削除・書き直し）
+     */
+    private void mirrorSourceChange(PlayerState state, World world, long sourcePos) {
+        int x = BlockPos.getX(sourcePos);
+        int z = BlockPos.getZ(sourcePos);
+        if (!world.isChunkLoaded(x >> 4, z >> 4)) return;
+
+        Material type = world.getBlockAt(x, BlockPos.getY(sourcePos), z).getType();
+        // ピストンで動いている途中のブロックは写さず、止まった後の変化（onSourceBlocksMoved）で反映する
+        if (type == Material.MOVING_PISTON) return;
+
+        boolean solid = !type.isAir();
+        if (solid) {
+            if (state.visibleBlocks.add(sourcePos)) {
+                displayBackend.show(state, world, sourcePos);
+            } else {
+                displayBackend.refresh(state, world, sourcePos);
+            }
+        } else if (state.visibleBlocks.remove(sourcePos)) {
+            displayBackend.hide(state, world, sourcePos);
         }
     }
-    
+
     /**
-     * y=50～HEIGHTからのブロック削除
+     * 対象ブロックがプレイヤーの現在の可視化範囲内か（最後に反映したスキャンの円、予算・負荷で狭めた範囲）
      */
-    private void removeBlockFromDisplay(Location sourceLocation, UUID playerId) {
-        World world = sourceLocation.getWorld();
+    private boolean isInPlayerRange(PlayerState state, long sourcePos) {
+        int dx = BlockPos.getX(sourcePos) - state.centerX;
+        int dz = BlockPos.getZ(sourcePos) - state.centerZ;
+        if (!config.getStencil(state.centerRange).contains(dx, dz)) return false;
+
+        // 縦の窓の外のブロックは表示しない
+        return state.centerWindow <= 0 || Math.abs(BlockPos.getY(sourcePos) - state.windowCenterY) <= state.centerWindow;
+    }
+
+    /**
+     * 定期的な安全策として全体スキャンを行う（移動がなくても実行する）
+     */
+    void rescan(Participant participant) {
+        PlayerState state = participant.state;
+        if (state == null) return;
+
+        Player player = participant.player;
+        if (state.world == null || !state.world.equals(player.getWorld())) {
+            updateVisibleBlocks(participant);
+            return;
+        }
+
+        Location location = player.getLocation();
+        tracer.record(Tracer.Type.UPDATE, BlockPos.pack(location.getBlockX(), location.getBlockY(), location.getBlockZ()), state.slot, 1);
+        state.forceFullScan = true;
+        requestScan(state, location);
+    }
+
+    /**
+     * 設定の再読み込み後に表示を新しい設定に合わせる
+     * <p>
+     * 表示位置（Yオフセット・表示Y範囲）が変わったブロックだけを前の位置から外して新しい位置に置き直し、
+     * 可視化範囲・対象Y範囲・縦の窓の変化は次の全体スキャンの差分で反映する。
+     * 書き込みは書き込みキューに予約するため、tickごとの予算内で行われる。
+     *
+     * @param previous 再読み込み前の表示位置の対応
+     */
+    public void onConfigReloaded(Config.Layout previous) {
+        Config.Layout current = config.getLayout();
+        for (Participant participant : participants.getParticipants()) {
+            PlayerState state = participant != null ? participant.state : null;
+            if (state == null) continue;
+            scheduling.runForEntity(participant.player, () -> reconcileLayout(state, previous, current));
+        }
+    }
+
+    /**
+     * プレイヤーの表示を新しい設定に合わせる（プレイヤーのスレッド）
+     */
+    private void reconcileLayout(PlayerState state, Config.Layout previous, Config.Layout current) {
+        // 実行中のスキャンは前の設定で計算しているため破棄し、次回は全体スキャンで新しい範囲との差分を取る
+        state.generation++;
+        state.forceFullScan = true;
+
+        World world = state.world;
         if (world == null) return;
-        
-        // 表示Y座標を計算
-        int displayY = config.calculateDisplayY(sourceLocation.getBlockY());
-        
-        // 表示範囲外の場合は無視
-        if (!config.isInDisplayRange(displayY)) return;
-        
-        Location displayLocation = new Location(world, sourceLocation.getX(), displayY, sourceLocation.getZ());
-        
-        Set<UUID> referencingPlayers = displayedBlocks.get(displayLocation);
-        if (referencingPlayers == null) return;
-        
-        // プレイヤーの参照を削除
-        referencingPlayers.remove(playerId);
-        
-        // 誰も参照していない場合はブロックを削除
-        if (referencingPlayers.isEmpty()) {
-            displayedBlocks.remove(displayLocation);
-            
-            Block displayBlock = world.getBlockAt(displayLocation);
-            displayBlock.setType(Material.AIR);
-            
-            if (config.isDebug()) {
-                plugin.getLogger().info("ブロック削除: " + displayLocation);
+
+        LongArrayList moved = new LongArrayList();
+        state.visibleBlocks.forEach(sourcePos -> {
+            if (!previous.isSamePosition(current, BlockPos.getY(sourcePos))) {
+                moved.add(sourcePos);
+            }
+        });
+        if (moved.isEmpty()) return;
+
+        displayBackend.hideBatch(state, world, moved, previous);
+        displayBackend.showBatch(state, world, moved);
+
+        // 前の位置と新しい位置が重なる場合は削除と配置の予約が相殺されて前の内容が残るため、新しい位置を書き直す
+        moved.forEach(sourcePos -> displayBackend.refresh(state, world, sourcePos));
+    }
+
+    /**
+     * チャンクがアンロードされる（索引を破棄し、表示ブロックを後片付けまたは保留する）
+     */
+    public void onChunkUnload(World world, int chunkX, int chunkZ) {
+        SourceIndex sourceIndex = sourceIndexes.get(world.getUID());
+        if (sourceIndex != null) {
+            sourceIndex.invalidate(BlockPos.chunkKey(chunkX, chunkZ));
+        }
+        displayBackend.onChunkUnload(world, chunkX, chunkZ);
+    }
+
+    /**
+     * チャンクが読み込まれた（次tickにまとめて表示を照合する）
+     */
+    public void onChunkLoad(World world, int chunkX, int chunkZ) {
+        synchronized (loadedChunks) {
+            loadedChunks.computeIfAbsent(world.getUID(), k -> new LongHashSet()).add(BlockPos.chunkKey(chunkX, chunkZ));
+            if (!chunkLoadTaskScheduled) {
+                chunkLoadTaskScheduled = true;
+                scheduling.runGlobal(this::applyChunkLoads);
             }
         }
     }
-    
+
     /**
-     * プレイヤー参加時の初期化
+     * 前tickに読み込まれたチャンクの表示を照合し、取りこぼしのあるプレイヤーを再スキャン
      */
-    public void onPlayerJoin(Player player) {
-        UUID playerId = player.getUniqueId();
-        playerVisibleBlocks.put(playerId, new HashSet<>());
-        lastPlayerLocations.put(playerId, player.getLocation().clone());
-        
+    private void applyChunkLoads() {
+        Map<UUID, LongHashSet> loads;
+        synchronized (loadedChunks) {
+            chunkLoadTaskScheduled = false;
+            loads = new HashMap<>(loadedChunks);
+            loadedChunks.clear();
+        }
+
+        for (Map.Entry<UUID, LongHashSet> entry : loads.entrySet()) {
+            World world = plugin.getServer().getWorld(entry.getKey());
+            if (world == null) continue;
+
+            LongHashSet chunkKeys = entry.getValue();
+            displayBackend.onChunksLoaded(world, chunkKeys, participants.getStates());
+
+            // 読み込まれていないチャンクを飛ばしたプレイヤーは、範囲内のチャンクが揃ったら待たずに全体スキャン
+            for (Participant participant : participants.getParticipants()) {
+                PlayerState state = participant != null ? participant.state : null;
+                if (state == null) continue;
+                Player player = participant.player;
+                scheduling.runForEntity(player, () -> {
+                    if (!state.forceFullScan || !state.hasCenter || !world.equals(state.world)) return;
+                    if (!isAnyChunkInPlayerRange(state, chunkKeys)) return;
+                    if (world.equals(player.getWorld())) {
+                        requestScan(state, player.getLocation());
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * いずれかのチャンクがプレイヤーの可視化範囲を囲むチャンクに含まれるか
+     */
+    private static boolean isAnyChunkInPlayerRange(PlayerState state, LongHashSet chunkKeys) {
+        int minChunkX = (state.centerX - state.centerRange) >> 4;
+        int maxChunkX = (state.centerX + state.centerRange) >> 4;
+        int minChunkZ = (state.centerZ - state.centerRange) >> 4;
+        int maxChunkZ = (state.centerZ + state.centerRange) >> 4;
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                if (chunkKeys.contains(BlockPos.chunkKey(chunkX, chunkZ))) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 次回の更新で全体スキャンを行うようにする（テレポート時など）
+     */
+    void requestFullScan(Participant participant) {
+        PlayerState state = participant.state;
+        if (state != null) {
+            state.forceFullScan = true;
+        }
+    }
+
+    /**
+     * 可視化の開始（参加時・権限を得たとき、プレイヤーのスレッドで呼ぶ）
+     */
+    void onPlayerJoin(Participant participant) {
+        Player player = participant.player;
+        PlayerState state = new PlayerState(participant.playerId, participant.slot);
+        state.world = player.getWorld();
+        PlayerState previous = participant.state;
+        participant.state = state;
+        if (previous != null) {
+            removeAllFromDisplay(previous);
+        }
+
         if (config.isDebug()) {
             plugin.getLogger().info(player.getName() + "のブロック管理を初期化しました");
         }
     }
-    
+
     /**
-     * プレイヤー退出時のクリーンアップ
+     * 可視化の終了（退出時・権限を失ったとき、プレイヤーのスレッドで呼ぶ）
      */
-    public void onPlayerQuit(Player player) {
-        UUID playerId = player.getUniqueId();
-        
-        // プレイヤーが参照していたブロックをすべて削除
-        Set<Location> visibleBlocks = playerVisibleBlocks.get(playerId);
-        if (visibleBlocks != null) {
-            for (Location sourceLocation : visibleBlocks) {
-                removeBlockFromDisplay(sourceLocation, playerId);
-            }
+    void onPlayerQuit(Participant participant) {
+        // プレイヤーが参照していたブロックをすべて削除し、データを削除
+        PlayerState state = participant.state;
+        participant.state = null;
+        if (state != null) {
+            removeAllFromDisplay(state);
         }
-        
-        // プレイヤーのデータを削除
-        playerVisibleBlocks.remove(playerId);
-        lastPlayerLocations.remove(playerId);
-        
+
         if (config.isDebug()) {
-            plugin.getLogger().info(player.getName() + "のブロック管理をクリーンアップしました");
+            plugin.getLogger().info(participant.player.getName() + "のブロック管理をクリーンアップしました");
         }
     }
-    
+
     /**
-     * 範囲内判定
+     * 範囲内判定（プレイヤーの現在の可視化範囲、スキャンする円ではなく表示に反映した円で判定する）
      */
-    public boolean isWithinRange(Location playerLocation, Location blockLocation) {
-        if (!playerLocation.getWorld().equals(blockLocation.getWorld())) {
+    boolean isWithinRange(Participant participant, Location blockLocation) {
+        PlayerState state = participant.state;
+        if (state == null || !state.hasCenter || !blockLocation.getWorld().equals(state.world)) {
             return false;
         }
-        
-        double distance = Math.sqrt(
-            Math.pow(playerLocation.getX() - blockLocation.getX(), 2) +
-            Math.pow(playerLocation.getZ() - blockLocation.getZ(), 2)
-        );
-        
-        return distance <= config.getVisibilityRange();
+
+        return isInPlayerRange(state, BlockPos.pack(blockLocation.getBlockX(), blockLocation.getBlockY(), blockLocation.getBlockZ()));
     }
-    
+
     /**
      * 統計情報を取得（デバッグ用）
      */
     public String getStatistics() {
-        int totalVisibleBlocks = playerVisibleBlocks.values().stream()
-            .mapToInt(Set::size)
+        List<PlayerState> states = participants.getStates();
+        int totalVisibleBlocks = states.stream()
+            .mapToInt(state -> state.visibleBlocks.size())
+            .sum();
+        int totalDisplayedBlocks = displayBackend.getDisplayedBlockCount(states);
+
+        int indexedChunks = sourceIndexes.values().stream()
+            .mapToInt(SourceIndex::size)
+            .sum();
+
+        return String.format("プレイヤー数: %d, 総可視化ブロック数: %d, 表示ブロック数: %d, 書き込み待ち: %d, 索引チャンク数: %d",
+            states.size(), totalVisibleBlocks, totalDisplayedBlocks, writeScheduler.getPendingCount(), indexedChunks);
+    }
+
+    /**
+     * 可視化ブロック数の予算の使用状況と負荷による範囲の縮小
+     */
+    public String getBudgetStatistics() {
+        return displayBudget.getStatistics();
+    }
+
+    /**
+     * 全プレイヤーの可視化ブロック数の合計（範囲が重なっているブロックはプレイヤーごとに数える）
+     */
+    private int getTotalVisibleBlocks() {
+        return participants.getStates().stream()
+            .mapToInt(state -> state.visibleBlocks.size())
             .sum();
-        
-        return String.format("プレイヤー数: %d, 総可視化ブロック数: %d, 表示ブロック数: %d",
-            playerVisibleBlocks.size(), totalVisibleBlocks, displayedBlocks.size());
     }
-    
+
+    /**
+     * プレイヤーごとの統計情報（可視化ブロック数とスキャン時間）
+     */
+    public List<String> getPlayerStatistics() {
+        List<String> lines = new ArrayList<>();
+        for (Participant participant : participants.getParticipants()) {
+            PlayerState state = participant != null ? participant.state : null;
+            if (state == null) continue;
+            String name = participant.player.getName();
+            double average = state.scanCount == 0 ? 0 : (double) state.scanNanosTotal / state.scanCount;
+            lines.add(String.format("%s: 可視化ブロック数: %d, 範囲: %d, スキャン回数: %d, 平均: %.2fms, 最大: %.2fms, 前回の走査ブロック数: %d",
+                name, state.visibleBlocks.size(), state.centerRange, state.scanCount, average / 1_000_000.0, state.scanNanosMax / 1_000_000.0, state.lastScannedBlocks));
+        }
+        return lines;
+    }
+
+    int getPlayerCount() {
+        return participants.getEnabledCount();
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * スロット番号とプレイヤー名の対応（トレースの出力用）
+     */
+    Map<Integer, String> getSlotNames() {
+        Map<Integer, String> names = new HashMap<>();
+        for (Participant participant : participants.getParticipants()) {
+            if (participant != null) {
+                names.put(participant.slot, participant.player.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * オンラインのプレイヤーの記録（PlayerListener が登録・削除する）
+     */
+    ParticipantRegistry getParticipants() {
+        return participants;
+    }
+
     /**
      * 全データのクリーンアップ
      */
     public void cleanup() {
+        // 実行中のスキャンを停止（結果は破棄される）
+        scanExecutor.shutdownNow();
+
         // すべての表示ブロックを削除
-        for (Location displayLocation : new HashSet<>(displayedBlocks.keySet())) {
-            World world = displayLocation.getWorld();
-            if (world != null) {
-                Block block = world.getBlockAt(displayLocation);
-                block.setType(Material.AIR);
-            }
-        }
-        
-        playerVisibleBlocks.clear();
-        displayedBlocks.clear();
-        lastPlayerLocations.clear();
-        
+        displayBackend.cleanup(participants.getStates());
+        writeScheduler.stop();
+        displayBudget.stop();
+
+        participants.clear();
+        sourceIndexes.clear();
+        changedSourceBlocks.clear();
+        loadedChunks.clear();
+
         plugin.getLogger().info("ブロック管理システムをクリーンアップしました");
     }
-} 
\ No newline at end of file
+}
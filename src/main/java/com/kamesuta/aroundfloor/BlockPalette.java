@@ -0,0 +1,95 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.Server;
+import org.bukkit.block.data.BlockData;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * BlockDataの通し番号（インターン）
+ * <p>
+ * 番号は1行1件の文字列としてファイルに追記し、再起動後も同じ番号を使う（ジャーナルから参照するため）。
+ * 番号0は空気を表す。読み込めなかった行（バージョンアップで消えたブロックなど）も空気として扱う。
+ * 操作は同期化している（Folia では複数のリージョンから使用される）。
+ */
+final class BlockPalette {
+    // 空気の番号
+    static final int AIR = 0;
+
+    private final Path file;
+    private final Logger logger;
+
+    // 番号ごとのBlockData（0番と読み込めなかった番号はnull）
+    private final List<BlockData> entries = new ArrayList<>();
+    private final Map<BlockData, Integer> ids = new HashMap<>();
+
+    private BlockPalette(Path file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+        entries.add(null);
+    }
+
+    /**
+     * ファイルから読み込む（なければ空）
+     */
+    static BlockPalette load(Path file, Server server, Logger logger) {
+        BlockPalette palette = new BlockPalette(file, logger);
+        if (!Files.exists(file)) return palette;
+
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                BlockData data = null;
+                try {
+                    data = server.createBlockData(line);
+                } catch (IllegalArgumentException e) {
+                    logger.warning("ブロック " + line + " を読み込めませんでした。空気として扱います");
+                }
+                int id = palette.entries.size();
+                palette.entries.add(data);
+                if (data != null) {
+                    palette.ids.putIfAbsent(data, id);
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("パレット " + file.getFileName() + " を読み込めませんでした: " + e.getMessage());
+        }
+        return palette;
+    }
+
+    /**
+     * BlockDataの番号を取得（初めてのBlockDataは番号を割り当ててファイルに追記）
+     */
+    synchronized int idOf(BlockData data) {
+        if (data.getMaterial().isAir()) return AIR;
+
+        Integer id = ids.get(data);
+        if (id != null) return id;
+
+        int newId = entries.size();
+        entries.add(data);
+        ids.put(data, newId);
+        try {
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, data.getAsString() + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.warning("パレット " + file.getFileName() + " への追記に失敗しました: " + e.getMessage());
+        }
+        return newId;
+    }
+
+    /**
+     * 番号のBlockData（空気・不明な番号はnull）
+     */
+    synchronized BlockData get(int id) {
+        return id > 0 && id < entries.size() ? entries.get(id) : null;
+    }
+}
@@ -0,0 +1,74 @@
+package com.kamesuta.aroundfloor;
+
+/**
+ * ブロック座標をlong1つに詰めて扱うためのユーティリティ
+ * <p>
+ * レイアウトはバニラの BlockPos#asLong と同じ (x:26bit, z:26bit, y:12bit)
+ */
+public final class BlockPos {
+    private static final int BITS_X = 26;
+    private static final int BITS_Z = 26;
+    private static final int BITS_Y = 12;
+    private static final long MASK_X = (1L << BITS_X) - 1L;
+    private static final long MASK_Z = (1L << BITS_Z) - 1L;
+    private static final long MASK_Y = (1L << BITS_Y) - 1L;
+    private static final int SHIFT_Z = BITS_Y;
+    private static final int SHIFT_X = BITS_Y + BITS_Z;
+
+    private BlockPos() {
+    }
+
+    /**
+     * 座標をlongに変換
+     */
+    public static long pack(int x, int y, int z) {
+        return ((x & MASK_X) << SHIFT_X) | ((z & MASK_Z) << SHIFT_Z) | (y & MASK_Y);
+    }
+
+    public static int getX(long packed) {
+        return (int) (packed << (64 - SHIFT_X - BITS_X) >> (64 - BITS_X));
+    }
+
+    public static int getY(long packed) {
+        return (int) (packed << (64 - BITS_Y) >> (64 - BITS_Y));
+    }
+
+    public static int getZ(long packed) {
+        return (int) (packed << (64 - SHIFT_Z - BITS_Z) >> (64 - BITS_Z));
+    }
+
+    /**
+     * Y座標だけを差し替えた座標を取得
+     */
+    public static long withY(long packed, int y) {
+        return (packed & ~MASK_Y) | (y & MASK_Y);
+    }
+
+    /**
+     * チャンク座標をlongに変換
+     */
+    public static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * ブロック座標が属するチャンクのキーを取得
+     */
+    public static long chunkKeyOf(long packed) {
+        return chunkKey(getX(packed) >> 4, getZ(packed) >> 4);
+    }
+
+    /**
+     * ブロック座標が属するチャンクセクションのキーを取得
+     */
+    public static long sectionKeyOf(long packed) {
+        return pack(getX(packed) >> 4, getY(packed) >> 4, getZ(packed) >> 4);
+    }
+
+    /**
+     * デバッグ表示用の文字列
+     */
+    public static String toString(long packed) {
+        return "(" + getX(packed) + ", " + getY(packed) + ", " + getZ(packed) + ")";
+    }
+}
@@ -0,0 +1,62 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Paper（メインスレッド1本）での実行先
+ * <p>
+ * チャンク・エンティティのタスクはメインスレッドから呼ばれた場合はその場で実行し、それ以外は次tickに実行する
+ */
+final class BukkitScheduling implements Scheduling {
+    private final AroundFloorPlugin plugin;
+
+    BukkitScheduling(AroundFloorPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public boolean isRegionized() {
+        return false;
+    }
+
+    @Override
+    public Task runGlobalTimer(Runnable task, long delay, long period) {
+        BukkitTask bukkitTask = plugin.getServer().getScheduler().runTaskTimer(plugin, task, delay, period);
+        return bukkitTask::cancel;
+    }
+
+    @Override
+    public void runGlobal(Runnable task) {
+        plugin.getServer().getScheduler().runTask(plugin, task);
+    }
+
+    @Override
+    public void runGlobalLater(Runnable task, long delay) {
+        plugin.getServer().getScheduler().runTaskLater(plugin, task, delay);
+    }
+
+    @Override
+    public void runAtChunk(World world, int chunkX, int chunkZ, Runnable task) {
+        runOnMainThread(task);
+    }
+
+    @Override
+    public void runForEntity(Entity entity, Runnable task) {
+        runOnMainThread(task);
+    }
+
+    @Override
+    public void runAsync(Runnable task) {
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, task);
+    }
+
+    private void runOnMainThread(Runnable task) {
+        if (plugin.getServer().isPrimaryThread()) {
+            task.run();
+        } else {
+            plugin.getServer().getScheduler().runTask(plugin, task);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.ChunkSnapshot;
+
+import java.util.Arrays;
+
+/**
+ * 1チャンク分の対象レイヤーの非空気ブロック位置（チャンクセクションごとのビットセット）
+ * <p>
+ * ビットは列ごとに連続するように並べる（列 = (x << 4) | z、1列16bit、long1つに4列）。
+ * 空気だけのセクションは null として持つ。
+ * 列ごとに非空気ブロックの最小・最大のY（高さマップ）を持ち、空の列と空の高さは読み飛ばす。
+ * 対象ブロックが変化するとチャンクごと破棄して作り直すため、高さマップも常に最新になる。
+ * 構築後は変更しない（ワーカースレッドから読み取るため）。
+ */
+final class ChunkIndex {
+    private static final int SECTION_LONGS = 64;
+    private static final int COLUMNS = 256;
+
+    // 空の列の最小・最大のY（最小 > 最大）
+    private static final short EMPTY_MIN_Y = Short.MAX_VALUE;
+    private static final short EMPTY_MAX_Y = Short.MIN_VALUE;
+
+    private final boolean built;
+    private final int yMin;
+    private final int yMax;
+    private final int minSectionY;
+    private final long[][] sections;
+
+    // 列ごとの非空気ブロックの最小・最大のY（列 = (x << 4) | z）
+    private final short[] columnMinY;
+    private final short[] columnMaxY;
+
+    private ChunkIndex(boolean built, int yMin, int yMax, long[][] sections, short[] columnMinY, short[] columnMaxY) {
+        this.built = built;
+        this.yMin = yMin;
+        this.yMax = yMax;
+        this.minSectionY = yMin >> 4;
+        this.sections = sections;
+        this.columnMinY = columnMinY;
+        this.columnMaxY = columnMaxY;
+    }
+
+    /**
+     * 構築中を表すトークン（インスタンスの同一性で構築の競合を判定する）
+     */
+    static ChunkIndex pending() {
+        return new ChunkIndex(false, 0, -1, null, null, null);
+    }
+
+    /**
+     * スナップショットから構築（ワーカースレッドで呼ぶ）
+     *
+     * @param worldMinSectionY ワールドの最下層セクション（スナップショットのセクション番号の基準）
+     */
+    static ChunkIndex build(ChunkSnapshot snapshot, int yMin, int yMax, int worldMinSectionY) {
+        int minSectionY = yMin >> 4;
+        int maxSectionY = yMax >> 4;
+        long[][] sections = new long[maxSectionY - minSectionY + 1][];
+        short[] columnMinY = new short[COLUMNS];
+        short[] columnMaxY = new short[COLUMNS];
+        Arrays.fill(columnMinY, EMPTY_MIN_Y);
+        Arrays.fill(columnMaxY, EMPTY_MAX_Y);
+        for (int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+            // 空のセクションは読み飛ばす
+            if (snapshot.isSectionEmpty(sectionY - worldMinSectionY)) continue;
+
+            int fromY = Math.max(yMin, sectionY << 4);
+            int toY = Math.min(yMax, (sectionY << 4) | 15);
+            long[] mask = null;
+            for (int x = 0; x < 16; x++) {
+                for (int z = 0; z < 16; z++) {
+                    int column = (x << 4) | z;
+                    for (int y = fromY; y <= toY; y++) {
+                        if (snapshot.getBlockType(x, y, z).isAir()) continue;
+                        if (mask == null) mask = new long[SECTION_LONGS];
+                        mask[column >> 2] |= 1L << (((column & 3) << 4) | (y & 15));
+                        // 下のセクションから順に走査するため、最初に見つかったYが最小
+                        if (columnMinY[column] == EMPTY_MIN_Y) columnMinY[column] = (short) y;
+                        columnMaxY[column] = (short) y;
+                    }
+                }
+            }
+            sections[sectionY - minSectionY] = mask;
+        }
+        return new ChunkIndex(true, yMin, yMax, sections, columnMinY, columnMaxY);
+    }
+
+    /**
+     * 指定の対象Y範囲で構築されたものか
+     */
+    boolean matches(int yMin, int yMax) {
+        return built && this.yMin == yMin && this.yMax == yMax;
+    }
+
+    /**
+     * セクションのビットセット（空気だけの場合はnull）
+     */
+    long[] getSection(int sectionY) {
+        int index = sectionY - minSectionY;
+        if (index < 0 || index >= sections.length) return null;
+        return sections[index];
+    }
+
+    /**
+     * 1列分の非空気ブロックを書き出す（列の最小・最大のYの間のセクションだけを読む）
+     *
+     * @param minY 読み出すYの下限
+     * @param maxY 読み出すYの上限
+     * @param out  書き出し先（読み出すYの範囲の高さ以上の長さ）
+     * @return 書き出した数
+     */
+    int readColumn(int x, int z, int minY, int maxY, long[] out) {
+        int column = ((x & 15) << 4) | (z & 15);
+        int fromY = Math.max(minY, columnMinY[column]);
+        int toY = Math.min(maxY, columnMaxY[column]);
+        // 空の列（または範囲に非空気ブロックがない列）
+        if (fromY > toY) return 0;
+
+        int count = 0;
+        int fromSectionY = fromY >> 4;
+        int toSectionY = toY >> 4;
+        for (int sectionY = fromSectionY; sectionY <= toSectionY; sectionY++) {
+            long[] section = getSection(sectionY);
+            if (section == null) continue;
+
+            int bits = columnBits(section, x & 15, z & 15);
+            // 範囲の端のセクションは範囲外のYを落とす
+            if (sectionY == fromSectionY) bits &= -1 << (fromY & 15);
+            if (sectionY == toSectionY) bits &= (2 << (toY & 15)) - 1;
+            while (bits != 0) {
+                int y = (sectionY << 4) | Integer.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                out[count++] = BlockPos.pack(x, y, z);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * セクション内の1列分のビット（bit n = セクション内のY n）
+     */
+    static int columnBits(long[] section, int localX, int localZ) {
+        int column = (localX << 4) | localZ;
+        return (int) (section[column >> 2] >>> ((column & 3) << 4)) & 0xFFFF;
+    }
+}
@@ -4,6 +4,69 @@ import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
 
 public class Config {
+    /**
+     * 表示レイヤーへの反映方法
+     */
+    public enum DisplayMode {
+        // ワールドのブロックを書き換える（全プレイヤー共通）
+        WORLD,
+        // ブロック変更パケットのみ送信する（プレイヤーごと、ワールドは変更しない）
+        PACKET
+    }
+    
+    /**
+     * チャンクのアンロード時の表示ブロックの扱い
+     */
+    public enum ChunkUnloadMode {
+        // 表示ブロックを取り除いてから保存する（読み込み時に置き直す）
+        RESTORE,
+        // 表示ブロックを残したまま保存する（読み込み時に照合する）
+        SUSPEND
+    }
+    
+    /**
+     * 計測値の出力形式
+     */
+    public enum MetricsFormat {
+        CSV,
+        // 1行1オブジェクトのJSON
+        JSON
+    }
+    
+    /**
+     * 対象レイヤーから表示レイヤーへの位置の対応（再読み込みの前後で表示位置を比べるために値として持つ）
+     */
+    public static final class Layout {
+        private final int yOffset;
+        private final int displayYMin;
+        private final int displayYMax;
+        
+        Layout(int yOffset, int displayYMin, int displayYMax) {
+            this.yOffset = yOffset;
+            this.displayYMin = displayYMin;
+            this.displayYMax = displayYMax;
+        }
+        
+        public int calculateDisplayY(int sourceY) {
+            return sourceY + yOffset;
+        }
+        
+        public boolean isInDisplayRange(int y) {
+            return y >= displayYMin && y <= displayYMax;
+        }
+        
+        /**
+         * 対象Yのブロックの表示位置（表示するかどうかを含む）が別の対応と同じか
+         */
+        public boolean isSamePosition(Layout other, int sourceY) {
+            int displayY = calculateDisplayY(sourceY);
+            int otherDisplayY = other.calculateDisplayY(sourceY);
+            boolean shown = isInDisplayRange(displayY);
+            if (shown != other.isInDisplayRange(otherDisplayY)) return false;
+            return !shown || displayY == otherDisplayY;
+        }
+    }
+    
     private final JavaPlugin plugin;
     private FileConfiguration config;
     
@@ -15,8 +78,34 @@ public class Config {
     private int displayYMax;
     private int yOffset;
     private int updateInterval;
+    private int moveUpdateInterval;
+    private int playerUpdateBudget;
+    private int lookaheadTicks;
+    private int lookaheadMargin;
+    private int verticalWindow;
+    private int innerRadius;
+    private int displayBudget;
+    private int backpressureMspt;
+    private int scanThreads;
+    private DisplayMode displayMode;
+    private int writeBudgetOperations;
+    private int writeBudgetMillis;
+    private ChunkUnloadMode chunkUnloadMode;
+    private int metricsExportInterval;
+    private MetricsFormat metricsExportFormat;
+    private int traceBufferSize;
+    private final int[] traceSampleRates = new int[Tracer.Type.values().length];
     private boolean debug;
     
+    // スキャンする円（可視化範囲 + 先読みの余白、範囲が変わったときだけ作り直す）
+    private Stencil stencil;
+    
+    // 予算・負荷で狭めた範囲の円（半径ごと、必要になったときに作る）
+    private volatile Stencil[] narrowedStencils;
+    
+    // 表示位置の対応（読み込みごとに作り直す）
+    private Layout layout;
+    
     public Config(JavaPlugin plugin) {
         this.plugin = plugin;
         loadConfig();
@@ -34,12 +123,38 @@ public class Config {
         displayYMin = config.getInt("aroundfloor.display-y-min", 50);
         displayYMax = config.getInt("aroundfloor.display-y-max", 419);
         yOffset = config.getInt("aroundfloor.y-offset", 100);
-        updateInterval = config.getInt("aroundfloor.update-interval", 20);
+        updateInterval = config.getInt("aroundfloor.update-interval", 600);
+        moveUpdateInterval = config.getInt("aroundfloor.move-update-interval", 4);
+        playerUpdateBudget = config.getInt("aroundfloor.player-update-budget", 8);
+        lookaheadTicks = config.getInt("aroundfloor.lookahead-ticks", 10);
+        lookaheadMargin = config.getInt("aroundfloor.lookahead-margin", 0);
+        verticalWindow = config.getInt("aroundfloor.vertical-window", 0);
+        innerRadius = config.getInt("aroundfloor.inner-radius", 0);
+        displayBudget = config.getInt("aroundfloor.display-budget", 0);
+        backpressureMspt = config.getInt("aroundfloor.backpressure-mspt", 0);
+        scanThreads = config.getInt("aroundfloor.scan-threads", 0);
+        displayMode = parseDisplayMode(config.getString("aroundfloor.display-mode", "world"));
+        writeBudgetOperations = config.getInt("aroundfloor.write-budget-operations", 2000);
+        writeBudgetMillis = config.getInt("aroundfloor.write-budget-millis", 5);
+        chunkUnloadMode = parseChunkUnloadMode(config.getString("aroundfloor.chunk-unload-mode", "restore"));
+        metricsExportInterval = config.getInt("aroundfloor.metrics-export-interval", 0);
+        metricsExportFormat = parseMetricsFormat(config.getString("aroundfloor.metrics-export-format", "csv"));
+        traceBufferSize = config.getInt("aroundfloor.trace-buffer-size", 65536);
+        for (Tracer.Type type : Tracer.Type.values()) {
+            traceSampleRates[type.ordinal()] = config.getInt("aroundfloor.trace-sampling." + type.configKey, type.defaultRate);
+        }
         debug = config.getBoolean("aroundfloor.debug", false);
         
         // 設定値の検証
         validateConfig();
         
+        int scanRange = visibilityRange + lookaheadMargin;
+        if (stencil == null || stencil.getRange() != scanRange) {
+            stencil = new Stencil(scanRange);
+            narrowedStencils = new Stencil[scanRange];
+        }
+        layout = new Layout(yOffset, displayYMin, displayYMax);
+        
         if (debug) {
             plugin.getLogger().info("設定を読み込みました:");
             plugin.getLogger().info("  可視化範囲: " + visibilityRange + "ブロック");
@@ -47,6 +162,7 @@ public class Config {
             plugin.getLogger().info("  表示Y範囲: " + displayYMin + "～" + displayYMax);
             plugin.getLogger().info("  Yオフセット: " + yOffset);
             plugin.getLogger().info("  更新間隔: " + updateInterval + "tick");
+            plugin.getLogger().info("  表示モード: " + displayMode);
         }
     }
     
@@ -69,8 +185,107 @@ public class Config {
         }
         
         if (updateInterval <= 0) {
-            plugin.getLogger().warning("更新間隔は1以上である必要があります。デフォルト値(20)を使用します。");
-            updateInterval = 20;
+            plugin.getLogger().warning("更新間隔は1以上である必要があります。デフォルト値(600)を使用します。");
+            updateInterval = 600;
+        }
+        
+        if (moveUpdateInterval <= 0) {
+            plugin.getLogger().warning("移動時の更新間隔は1以上である必要があります。デフォルト値(4)を使用します。");
+            moveUpdateInterval = 4;
+        }
+        
+        if (playerUpdateBudget <= 0) {
+            plugin.getLogger().warning("1tickあたりの更新プレイヤー数は1以上である必要があります。デフォルト値(8)を使用します。");
+            playerUpdateBudget = 8;
+        }
+        
+        if (lookaheadTicks < 0) {
+            plugin.getLogger().warning("先読みするtick数は0以上である必要があります。先読みを無効にします。");
+            lookaheadTicks = 0;
+        }
+        
+        if (lookaheadMargin < 0 || lookaheadMargin > visibilityRange) {
+            plugin.getLogger().warning("先読みの余白は0以上、可視化範囲以下である必要があります。余白を無効にします。");
+            lookaheadMargin = 0;
+        }
+        
+        if (verticalWindow < 0) {
+            plugin.getLogger().warning("縦の窓の高さは0以上である必要があります。窓を無効にします。");
+            verticalWindow = 0;
+        }
+        
+        if (innerRadius < 0 || innerRadius >= visibilityRange) {
+            plugin.getLogger().warning("内側の範囲は0以上、可視化範囲未満である必要があります。内側の範囲を無効にします。");
+            innerRadius = 0;
+        }
+        
+        if (displayBudget < 0) {
+            plugin.getLogger().warning("可視化ブロック数の上限は0以上である必要があります。上限を無効にします。");
+            displayBudget = 0;
+        }
+        
+        if (backpressureMspt < 0) {
+            plugin.getLogger().warning("範囲を狭めるMSPTのしきい値は0以上である必要があります。負荷による縮小を無効にします。");
+            backpressureMspt = 0;
+        }
+        
+        if (writeBudgetOperations <= 0) {
+            plugin.getLogger().warning("1tickあたりの書き込み数は1以上である必要があります。デフォルト値(2000)を使用します。");
+            writeBudgetOperations = 2000;
+        }
+        
+        if (writeBudgetMillis <= 0) {
+            plugin.getLogger().warning("1tickあたりの書き込み時間は1以上である必要があります。デフォルト値(5)を使用します。");
+            writeBudgetMillis = 5;
+        }
+        
+        if (metricsExportInterval < 0) {
+            plugin.getLogger().warning("計測値の出力間隔は0以上である必要があります。出力を無効にします。");
+            metricsExportInterval = 0;
+        }
+        
+        if (traceBufferSize < 0) {
+            plugin.getLogger().warning("トレースのバッファサイズは0以上である必要があります。トレースを無効にします。");
+            traceBufferSize = 0;
+        }
+        
+        for (Tracer.Type type : Tracer.Type.values()) {
+            if (traceSampleRates[type.ordinal()] < 0) {
+                plugin.getLogger().warning("トレースのサンプリング間隔(" + type.configKey + ")は0以上である必要があります。デフォルト値(" + type.defaultRate + ")を使用します。");
+                traceSampleRates[type.ordinal()] = type.defaultRate;
+            }
+        }
+        
+        if (scanThreads <= 0) {
+            // 自動設定: CPUコア数の半分（1～4）
+            scanThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        }
+    }
+    
+    private DisplayMode parseDisplayMode(String value) {
+        try {
+            return DisplayMode.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().warning("表示モードが不正です: " + value + "。デフォルト値(world)を使用します。");
+            return DisplayMode.WORLD;
+        }
+    }
+    
+    private ChunkUnloadMode parseChunkUnloadMode(String value) {
+        try {
+            return ChunkUnloadMode.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().warning("チャンクのアンロード時の動作が不正です: " + value + "。デフォルト値(restore)を使用します。");
+            return ChunkUnloadMode.RESTORE;
+        }
+    }
+    
+    private MetricsFormat parseMetricsFormat(String value) {
+        try {
+            return MetricsFormat.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().warning("計測値の出力形式が不正です: " + value + "。デフォルト値(csv)を使用します。");
+            return MetricsFormat.CSV;
         }
     }
     
@@ -82,7 +297,43 @@ public class Config {
     public int getDisplayYMax() { return displayYMax; }
     public int getYOffset() { return yOffset; }
     public int getUpdateInterval() { return updateInterval; }
+    public int getMoveUpdateInterval() { return moveUpdateInterval; }
+    public int getPlayerUpdateBudget() { return playerUpdateBudget; }
+    public int getLookaheadTicks() { return lookaheadTicks; }
+    public int getLookaheadMargin() { return lookaheadMargin; }
+    public int getVerticalWindow() { return verticalWindow; }
+    public int getInnerRadius() { return innerRadius; }
+    public int getScanThreads() { return scanThreads; }
+    public DisplayMode getDisplayMode() { return displayMode; }
+    public int getWriteBudgetOperations() { return writeBudgetOperations; }
+    public int getWriteBudgetMillis() { return writeBudgetMillis; }
+    public ChunkUnloadMode getChunkUnloadMode() { return chunkUnloadMode; }
+    public int getMetricsExportInterval() { return metricsExportInterval; }
+    public MetricsFormat getMetricsExportFormat() { return metricsExportFormat; }
     public boolean isDebug() { return debug; }
+    Stencil getStencil() { return stencil; }
+    public int getDisplayBudget() { return displayBudget; }
+    public int getBackpressureMspt() { return backpressureMspt; }
+    
+    /**
+     * 指定の半径の円（スキャンする円より広い場合はスキャンする円）
+     */
+    Stencil getStencil(int range) {
+        // 配列の長さはスキャンする円の半径（再読み込みと競合しても範囲外を読まないよう、配列の長さで比べる）
+        Stencil[] stencils = narrowedStencils;
+        if (range >= stencils.length) return stencil;
+        
+        // 不変オブジェクトのため、複数のスレッドで同時に作っても問題ない
+        Stencil narrowed = stencils[range];
+        if (narrowed == null) {
+            narrowed = new Stencil(range);
+            stencils[range] = narrowed;
+        }
+        return narrowed;
+    }
+    public Layout getLayout() { return layout; }
+    public int getTraceBufferSize() { return traceBufferSize; }
+    int getTraceSampleRate(Tracer.Type type) { return traceSampleRates[type.ordinal()]; }
     
     // Y座標変換メソッド
     public int calculateDisplayY(int sourceY) {
@@ -0,0 +1,77 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.World;
+
+import java.util.Collection;
+
+/**
+ * 表示レイヤー（y=50～HEIGHT）への反映方法
+ * <p>
+ * 実際の書き込みは WriteQueue に予約され、WriteScheduler によってtickごとに予算内で実行される
+ */
+interface DisplayBackend {
+    /**
+     * 対象ブロックを表示レイヤーにコピー
+     */
+    void show(PlayerState state, World world, long sourcePos);
+
+    /**
+     * 対象ブロックを表示レイヤーから削除
+     */
+    void hide(PlayerState state, World world, long sourcePos);
+
+    /**
+     * 複数の対象ブロックをまとめて表示レイヤーにコピー
+     */
+    default void showBatch(PlayerState state, World world, LongArrayList sourcePositions) {
+        sourcePositions.forEach(sourcePos -> show(state, world, sourcePos));
+    }
+
+    /**
+     * 複数の対象ブロックをまとめて表示レイヤーから削除
+     */
+    default void hideBatch(PlayerState state, World world, LongArrayList sourcePositions) {
+        sourcePositions.forEach(sourcePos -> hide(state, world, sourcePos));
+    }
+
+    /**
+     * 複数の対象ブロックを指定の対応での表示位置から削除（設定の再読み込みで表示位置が変わった場合に前の位置を消す）
+     */
+    void hideBatch(PlayerState state, World world, LongArrayList sourcePositions, Config.Layout layout);
+
+    /**
+     * 表示中のブロックをコピー元の現在の内容で書き直す
+     */
+    void refresh(PlayerState state, World world, long sourcePos);
+
+    /**
+     * プレイヤーが参照しているブロックをすべて表示から外す（退出・ワールド移動時）
+     */
+    void hideAll(PlayerState state);
+
+    /**
+     * チャンクがアンロードされる（イベント中に呼ぶため、チャンクはまだ読み込まれている）
+     */
+    void onChunkUnload(World world, int chunkX, int chunkZ);
+
+    /**
+     * チャンクが読み込まれた（表示を照合する、1tick分のチャンクをまとめて次tickに呼ぶ）
+     */
+    void onChunksLoaded(World world, LongHashSet chunkKeys, Collection<PlayerState> states);
+
+    /**
+     * 前回異常終了したときに残った表示ブロックを取り除く（有効化時）
+     */
+    default void recover() {
+    }
+
+    /**
+     * 表示中のブロック数
+     */
+    int getDisplayedBlockCount(Collection<PlayerState> states);
+
+    /**
+     * 全表示の後片付け（プラグイン無効化時）
+     */
+    void cleanup(Collection<PlayerState> states);
+}
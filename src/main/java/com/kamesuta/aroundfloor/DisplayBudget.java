@@ -0,0 +1,168 @@
+package com.kamesuta.aroundfloor;
+
+import java.util.function.IntSupplier;
+
+/**
+ * 表示ブロック数の全体の上限と、サーバーの負荷に応じた可視化範囲の縮小
+ * <p>
+ * 上限は実際に置いている表示ブロック数（{@link DisplayBackend#getDisplayedBlockCount}、ワールドモードでは
+ * 参照カウントの件数）に対してかける。範囲が重なっているプレイヤーは同じ表示ブロックを共有するため、
+ * 各プレイヤーの可視化ブロック数を合計すると重なりの分だけ多く数えてしまう。そこで可視化ブロック数の合計と
+ * 表示ブロック数の比（重なりの倍率）を上限に掛けてからプレイヤー数で等分し、プレイヤーごとの割り当てとする。
+ * 割り当てを超えたプレイヤーは可視化範囲を狭めて遠いブロックから外す。
+ * MSPT がしきい値を超えている間は全プレイヤーの範囲を段階的に狭め、下がったら段階的に戻す。
+ * <p>
+ * 割り当てと負荷の評価はグローバルリージョン（Paper ではメインスレッド）で {@link #INTERVAL} tick（1秒）ごとに行い、
+ * プレイヤーごとの範囲はプレイヤーのスレッドで決める。評価の間にプレイヤーが増えたり重なりが変わったりすると、
+ * 次の評価までは表示ブロック数が上限を一時的に超えることがある。
+ */
+final class DisplayBudget {
+    // 評価の間隔（tick）
+    private static final long INTERVAL = 20L;
+
+    // 負荷で狭める範囲の下限（設定した範囲に対する割合）と、1回に狭める・戻す割合
+    private static final double MIN_PRESSURE_SCALE = 0.5;
+    private static final double PRESSURE_STEP = 0.125;
+
+    // MSPT がしきい値のこの割合を下回ったら範囲を戻す（狭めたり戻したりを繰り返さないように）
+    private static final double RECOVER_RATIO = 0.8;
+
+    // 割り当てを超えたときは割り当てのこの割合に収まる範囲に狭める
+    private static final double FILL_RATIO = 0.9;
+
+    // 割り当てのこの割合を下回ったら範囲を戻す
+    private static final double GROW_RATIO = 0.5;
+
+    private final AroundFloorPlugin plugin;
+    private final Config config;
+    private final IntSupplier playerCount;
+    private final IntSupplier visibleCount;
+    private final IntSupplier displayedCount;
+    private Scheduling.Task task;
+
+    // 負荷による範囲の倍率（1.0で縮小なし）
+    private volatile double pressureScale = 1.0;
+
+    // 直近の平均 MSPT（取得できない場合は0）
+    private volatile double mspt;
+
+    // プレイヤー1人あたりの可視化ブロック数の割り当て（0で無制限）
+    private volatile int share;
+
+    // 直近の評価での表示ブロック数と、範囲の重なりの倍率（統計表示用）
+    private volatile int displayed;
+    private volatile double overlap = 1.0;
+
+    /**
+     * @param playerCount    可視化が有効なプレイヤー数
+     * @param visibleCount   全プレイヤーの可視化ブロック数の合計
+     * @param displayedCount 実際に置いている表示ブロック数
+     */
+    DisplayBudget(AroundFloorPlugin plugin, Config config, IntSupplier playerCount, IntSupplier visibleCount, IntSupplier displayedCount) {
+        this.plugin = plugin;
+        this.config = config;
+        this.playerCount = playerCount;
+        this.visibleCount = visibleCount;
+        this.displayedCount = displayedCount;
+    }
+
+    void start() {
+        evaluate();
+        task = plugin.getScheduling().runGlobalTimer(this::evaluate, INTERVAL, INTERVAL);
+    }
+
+    void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    /**
+     * 割り当てと負荷による倍率を更新
+     */
+    private void evaluate() {
+        int budget = config.getDisplayBudget();
+        displayed = displayedCount.getAsInt();
+        int visible = visibleCount.getAsInt();
+        // 重なっている範囲の表示ブロックは複数のプレイヤーから数えられるため、割り当てはその分だけ増やす
+        overlap = displayed > 0 ? Math.max(1.0, (double) visible / displayed) : 1.0;
+        share = budget > 0
+            ? (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget * overlap / Math.max(1, playerCount.getAsInt())))
+            : 0;
+
+        mspt = readMspt();
+        int threshold = config.getBackpressureMspt();
+        if (threshold > 0 && mspt > threshold) {
+            pressureScale = Math.max(MIN_PRESSURE_SCALE, pressureScale - PRESSURE_STEP);
+        } else if (threshold <= 0 || mspt < threshold * RECOVER_RATIO) {
+            pressureScale = Math.min(1.0, pressureScale + PRESSURE_STEP);
+        }
+    }
+
+    /**
+     * 直近の平均 MSPT（Paper の API、取得できないサーバーでは0として負荷による縮小を行わない）
+     */
+    private double readMspt() {
+        try {
+            return plugin.getServer().getAverageTickTime();
+        } catch (UnsupportedOperationException | NoSuchMethodError e) {
+            // Folia・Paper 以外のサーバー
+            return 0;
+        }
+    }
+
+    /**
+     * プレイヤーのスキャン範囲（負荷と割り当てで狭めた範囲、プレイヤーのスレッドで呼ぶ）
+     */
+    int getRange(PlayerState state) {
+        int range = (int) (config.getStencil().getRange() * pressureScale);
+        if (state.budgetRange > 0) {
+            range = Math.min(range, state.budgetRange);
+        }
+        return Math.max(1, range);
+    }
+
+    /**
+     * 可視化ブロック数が割り当てに収まるようにプレイヤーの範囲を見積もり直す（スキャン結果の反映後、プレイヤーのスレッドで呼ぶ）
+     * <p>
+     * ブロックの密度が一様として、ブロック数が範囲の2乗に比例するものとして見積もる。
+     *
+     * @param range      反映したスキャンの範囲
+     * @param blockCount 可視化ブロック数
+     * @return 範囲を狭めた（すぐに再スキャンして割り当てを超えた分を外す）
+     */
+    boolean fitToShare(PlayerState state, int range, int blockCount) {
+        int share = this.share;
+        if (share <= 0) {
+            state.budgetRange = 0;
+            return false;
+        }
+
+        if (blockCount > share) {
+            // 遠いブロックから外れるように範囲を狭める
+            int narrowed = (int) (range * Math.sqrt(FILL_RATIO * share / blockCount));
+            state.budgetRange = Math.max(1, Math.min(range - 1, narrowed));
+            return true;
+        }
+
+        if (state.budgetRange > 0 && blockCount < share * GROW_RATIO) {
+            // 空きができたら範囲を戻す（次の更新で全体スキャンする）
+            int grown = blockCount == 0 ? Integer.MAX_VALUE : (int) (range * Math.sqrt(FILL_RATIO * share / blockCount));
+            state.budgetRange = grown >= config.getStencil().getRange() ? 0 : Math.max(range + 1, grown);
+        }
+        return false;
+    }
+
+    /**
+     * 予算の使用状況（統計表示用、直近の評価の値）
+     */
+    String getStatistics() {
+        int budget = config.getDisplayBudget();
+        int displayed = this.displayed;
+        String usage = budget > 0
+            ? String.format("%d / %d (%.0f%%, 1人あたり %d, 重なり %.2f倍)", displayed, budget, 100.0 * displayed / budget, share, overlap)
+            : displayed + " / 無制限";
+        return String.format("表示予算: %s, 負荷による範囲: %.0f%% (MSPT %.1fms)", usage, pressureScale * 100, mspt);
+    }
+}
@@ -0,0 +1,307 @@
+package com.kamesuta.aroundfloor;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * 表示ブロックの配置・削除を記録するジャーナル（1ワールド1ファイル、メモリマップ）
+ * <p>
+ * サーバーが異常終了して後片付けが行われなかった場合に、次回の有効化時に残った表示ブロックを取り除くために使う。
+ * 記録は追記のみで、1件はBlockPosでパックした表示位置（long）と元のブロックの BlockPalette の番号（int）。
+ * 64件ごとに、各件が削除かどうかを表すビットマップ（long）を置く。書き込みはマップしたメモリに行うだけで fsync はしない
+ * （プロセスが強制終了されてもOSのページキャッシュから書き出される）。
+ * <p>
+ * 記録はファイル内の領域（記録数 + ブロックの並び）に置き、ヘッダーが有効な領域の位置と大きさを指す。
+ * 有効な領域より後ろは使われていないため、領域がいっぱいになったらその場で拡張する。
+ * 7割5分まで埋まったら非同期に詰め直す。詰め直しは配置されたままの位置だけを空いている場所（先頭側に収まれば先頭側、
+ * 収まらなければ有効な領域の後ろ）に書いて fsync し、ヘッダーの1回の書き込みで切り替える
+ * （途中で止まっても切り替え前の領域がそのまま残る）。
+ * 入出力に失敗した場合は警告を出して記録をやめる。
+ * 操作は同期化している（Folia では複数のリージョンから記録される）。
+ */
+final class DisplayJournal {
+    // ファイル形式の識別子（"AFJRNL01"）
+    private static final long MAGIC = 0x41464A524E4C3031L;
+    // ヘッダー: 識別子・有効な領域（開始位置 << 32 | ブロック数）
+    private static final int HEADER_BYTES = 2 * Long.BYTES;
+    // 領域の先頭: 記録数
+    private static final int REGION_HEADER_BYTES = Long.BYTES;
+    // ビットマップ1つ・表示位置64件・元のブロックの番号64件をまとめたブロック
+    private static final int BLOCK_RECORDS = 64;
+    private static final int BLOCK_BYTES = Long.BYTES + BLOCK_RECORDS * (Long.BYTES + Integer.BYTES);
+    // 初期の大きさ（ブロック数、約1.5MiB）
+    private static final int INITIAL_BLOCKS = 2048;
+    // 詰め直しを始める使用率
+    private static final double COMPACT_RATIO = 0.75;
+
+    private final Path file;
+    private final Logger logger;
+    // 詰め直しの実行先
+    private final Executor compactor;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    // 有効な領域の開始位置（バイト）
+    private int regionStart;
+    // 記録できる件数と記録済みの件数
+    private long capacity;
+    private long count;
+    // 詰め直しを予約済みか
+    private boolean compactionQueued;
+
+    private DisplayJournal(Path file, Logger logger, Executor compactor) {
+        this.file = file;
+        this.logger = logger;
+        this.compactor = compactor;
+    }
+
+    /**
+     * ジャーナルを開く（なければ作成、形式が異なる場合は空にする）
+     *
+     * @param compactor 詰め直しの実行先（書き込みを呼び出したスレッドでは詰め直さない）
+     * @return 開けなかった場合はnull
+     */
+    static DisplayJournal open(Path file, Logger logger, Executor compactor) {
+        DisplayJournal journal = new DisplayJournal(file, logger, compactor);
+        try {
+            Files.createDirectories(file.getParent());
+            journal.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            journal.ensureMapped(Math.max(journal.channel.size(), HEADER_BYTES + regionBytes(INITIAL_BLOCKS)));
+            long magic = journal.buffer.getLong(0);
+            if (magic != MAGIC || !journal.activate(journal.buffer.getLong(Long.BYTES))) {
+                // 新しいファイル、または形式が異なる場合は空の領域から始める
+                journal.buffer.putLong(0, MAGIC);
+                journal.writeRegion(HEADER_BYTES, INITIAL_BLOCKS, new LongHashSet(), new LongIntHashMap());
+                if (journal.buffer == null) return null;
+            }
+            return journal;
+        } catch (IOException e) {
+            logger.warning("ジャーナル " + file.getFileName() + " を開けませんでした: " + e.getMessage());
+            journal.close();
+            return null;
+        }
+    }
+
+    /**
+     * 配置を記録
+     *
+     * @param originalId 元のブロックの BlockPalette の番号
+     */
+    synchronized void recordPlace(long displayPos, int originalId) {
+        append(displayPos, false, originalId);
+    }
+
+    /**
+     * 削除を記録
+     */
+    synchronized void recordRemove(long displayPos) {
+        append(displayPos, true, BlockPalette.AIR);
+    }
+
+    /**
+     * 記録を再生して、配置されたままの位置を取得
+     *
+     * @param originals 元のブロックが空気でない位置の BlockPalette の番号を追加するマップ
+     */
+    synchronized LongHashSet readPlaced(LongIntHashMap originals) {
+        if (buffer == null) return new LongHashSet();
+        return readPlaced(originals, regionStart + REGION_HEADER_BYTES, count);
+    }
+
+    private LongHashSet readPlaced(LongIntHashMap originals, int recordsStart, long count) {
+        LongHashSet placed = new LongHashSet();
+        for (long i = 0; i < count; i += BLOCK_RECORDS) {
+            int blockOffset = blockOffset(recordsStart, i);
+            long bitmap = buffer.getLong(blockOffset);
+            int records = (int) Math.min(BLOCK_RECORDS, count - i);
+            for (int k = 0; k < records; k++) {
+                long displayPos = buffer.getLong(positionOffset(blockOffset, k));
+                originals.remove(displayPos);
+                if ((bitmap & (1L << k)) != 0) {
+                    placed.remove(displayPos);
+                } else {
+                    placed.add(displayPos);
+                    originals.addTo(displayPos, buffer.getInt(originalOffset(blockOffset, k)));
+                }
+            }
+        }
+        return placed;
+    }
+
+    /**
+     * 配置されたままの位置だけを残して詰め直す（非同期、または無効化時に呼ぶ）
+     * <p>
+     * 新しい領域を有効な領域と重ならない場所に書いて fsync してから、ヘッダーを切り替える。
+     */
+    synchronized void compact() {
+        compactionQueued = false;
+        if (buffer == null) return;
+
+        LongIntHashMap originals = new LongIntHashMap();
+        LongHashSet placed = readPlaced(originals);
+        int blocks = blocksFor(placed.size());
+
+        // 先頭側の空きに収まればそこに、収まらなければ有効な領域の後ろに書く
+        long size = regionBytes(blocks);
+        long start = HEADER_BYTES + size <= regionStart ? HEADER_BYTES : regionStart + regionBytes(capacity / BLOCK_RECORDS);
+        writeRegion(start, blocks, placed, originals);
+    }
+
+    /**
+     * ディスクに書き出して閉じる（無効化時）
+     */
+    synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    private void append(long displayPos, boolean remove, int originalId) {
+        if (buffer == null) return;
+        if (count == capacity) {
+            // 有効な領域より後ろは使われていないので、その場で拡張する
+            try {
+                long blocks = capacity / BLOCK_RECORDS * 2;
+                ensureMapped(regionStart + regionBytes(blocks));
+                buffer.putLong(Long.BYTES, region(regionStart, blocks));
+                capacity = blocks * BLOCK_RECORDS;
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+        }
+        if (!compactionQueued && count >= capacity * COMPACT_RATIO) {
+            compactionQueued = true;
+            compactor.execute(this::compact);
+        }
+
+        // 記録 → ビットマップ → 記録数の順に書く（途中で止まっても記録数より先は読まれない）
+        int blockOffset = blockOffset(regionStart + REGION_HEADER_BYTES, count);
+        int index = (int) (count % BLOCK_RECORDS);
+        buffer.putLong(positionOffset(blockOffset, index), displayPos);
+        buffer.putInt(originalOffset(blockOffset, index), originalId);
+        long bitmap = index == 0 ? 0 : buffer.getLong(blockOffset);
+        if (remove) {
+            bitmap |= 1L << index;
+        } else {
+            bitmap &= ~(1L << index);
+        }
+        buffer.putLong(blockOffset, bitmap);
+        setCount(count + 1);
+    }
+
+    private void setCount(long count) {
+        this.count = count;
+        buffer.putLong(regionStart, count);
+    }
+
+    /**
+     * 配置された位置だけを持つ領域を書き、fsync してからヘッダーを切り替える
+     */
+    private void writeRegion(long start, int blocks, LongHashSet placed, LongIntHashMap originals) {
+        try {
+            ensureMapped(start + regionBytes(blocks));
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+
+        int recordsStart = (int) start + REGION_HEADER_BYTES;
+        long[] written = {0};
+        placed.forEach(displayPos -> {
+            int blockOffset = blockOffset(recordsStart, written[0]);
+            int index = (int) (written[0] % BLOCK_RECORDS);
+            buffer.putLong(positionOffset(blockOffset, index), displayPos);
+            buffer.putInt(originalOffset(blockOffset, index), originals.get(displayPos));
+            if (index == 0) {
+                buffer.putLong(blockOffset, 0);
+            }
+            written[0]++;
+        });
+        buffer.putLong((int) start, written[0]);
+        buffer.force();
+
+        buffer.putLong(Long.BYTES, region(start, blocks));
+        buffer.force();
+        activate(region(start, blocks));
+    }
+
+    /**
+     * ヘッダーが指す領域を有効にする
+     *
+     * @return 領域がファイルに収まっていたか
+     */
+    private boolean activate(long region) {
+        long start = region >>> 32;
+        long blocks = region & 0xFFFFFFFFL;
+        if (start < HEADER_BYTES || blocks == 0 || start + regionBytes(blocks) > buffer.capacity()) return false;
+
+        regionStart = (int) start;
+        capacity = blocks * BLOCK_RECORDS;
+        count = Math.min(buffer.getLong(regionStart), capacity);
+        return true;
+    }
+
+    /**
+     * 詰め直した後に半分以上の空きが残るブロック数
+     */
+    private static int blocksFor(int records) {
+        int blocks = INITIAL_BLOCKS;
+        while ((long) records * 2 > (long) blocks * BLOCK_RECORDS) {
+            blocks <<= 1;
+        }
+        return blocks;
+    }
+
+    private static long region(long start, long blocks) {
+        return start << 32 | blocks;
+    }
+
+    private static long regionBytes(long blocks) {
+        return REGION_HEADER_BYTES + blocks * BLOCK_BYTES;
+    }
+
+    private static int blockOffset(int recordsStart, long record) {
+        return (int) (recordsStart + (record / BLOCK_RECORDS) * BLOCK_BYTES);
+    }
+
+    private static int positionOffset(int blockOffset, int index) {
+        return blockOffset + Long.BYTES + index * Long.BYTES;
+    }
+
+    private static int originalOffset(int blockOffset, int index) {
+        return blockOffset + Long.BYTES + BLOCK_RECORDS * Long.BYTES + index * Integer.BYTES;
+    }
+
+    /**
+     * ファイルの先頭から size バイトまでをマップする（足りなければファイルを拡張）
+     */
+    private void ensureMapped(long size) throws IOException {
+        if (buffer != null && buffer.capacity() >= size) return;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("ジャーナルが大きすぎます");
+        }
+        if (buffer != null) {
+            buffer.force();
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void fail(IOException e) {
+        logger.warning("ジャーナル " + file.getFileName() + " への記録に失敗しました。以降は記録しません: " + e.getMessage());
+        close();
+    }
+}
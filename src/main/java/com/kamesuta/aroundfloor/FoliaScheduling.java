@@ -0,0 +1,68 @@
+package com.kamesuta.aroundfloor;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+
+/**
+ * Folia（リージョンごとのスレッド）での実行先
+ * <p>
+ * チャンクのタスクはリージョンスケジューラー、エンティティのタスクはエンティティスケジューラー、
+ * 全体の定期処理はグローバルリージョンスケジューラーで実行する。
+ * 既に所有するスレッドから呼ばれた場合はその場で実行する。
+ */
+final class FoliaScheduling implements Scheduling {
+    private final AroundFloorPlugin plugin;
+
+    FoliaScheduling(AroundFloorPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public boolean isRegionized() {
+        return true;
+    }
+
+    @Override
+    public Task runGlobalTimer(Runnable task, long delay, long period) {
+        // Folia では初回の遅延は1tick以上
+        ScheduledTask scheduledTask = Bukkit.getGlobalRegionScheduler().runAtFixedRate(plugin, t -> task.run(), Math.max(1L, delay), period);
+        return scheduledTask::cancel;
+    }
+
+    @Override
+    public void runGlobal(Runnable task) {
+        Bukkit.getGlobalRegionScheduler().execute(plugin, task);
+    }
+
+    @Override
+    public void runGlobalLater(Runnable task, long delay) {
+        // Folia では遅延は1tick以上
+        Bukkit.getGlobalRegionScheduler().runDelayed(plugin, t -> task.run(), Math.max(1L, delay));
+    }
+
+    @Override
+    public void runAtChunk(World world, int chunkX, int chunkZ, Runnable task) {
+        if (Bukkit.isOwnedByCurrentRegion(world, chunkX, chunkZ)) {
+            task.run();
+        } else {
+            Bukkit.getRegionScheduler().execute(plugin, world, chunkX, chunkZ, task);
+        }
+    }
+
+    @Override
+    public void runForEntity(Entity entity, Runnable task) {
+        if (Bukkit.isOwnedByCurrentRegion(entity)) {
+            task.run();
+        } else {
+            // エンティティが消えた場合（退出など）は実行しない
+            entity.getScheduler().execute(plugin, task, null, 1L);
+        }
+    }
+
+    @Override
+    public void runAsync(Runnable task) {
+        Bukkit.getAsyncScheduler().runNow(plugin, t -> task.run());
+    }
+}
@@ -0,0 +1,181 @@
+package com.kamesuta.aroundfloor;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * long専用のオープンアドレス法ハッシュセット
+ * <p>
+ * 要素をボクシングせずに保持し、clear()後も配列を再利用する。
+ * キー0は配列上の空きスロットを表すため、別フラグで管理する。
+ * スレッドセーフではない。
+ */
+public final class LongHashSet {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+    private boolean containsZero;
+
+    public LongHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongHashSet(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * 要素を追加
+     *
+     * @return 新たに追加された場合true
+     */
+    public boolean add(long key) {
+        if (key == 0L) {
+            if (containsZero) return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+
+        int index = hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) return false;
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * 要素を削除
+     *
+     * @return 削除された場合true
+     */
+    public boolean remove(long key) {
+        if (key == 0L) {
+            if (!containsZero) return false;
+            containsZero = false;
+            size--;
+            return true;
+        }
+
+        int index = hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) {
+                keys[index] = 0L;
+                size--;
+                shiftKeys(index);
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean contains(long key) {
+        if (key == 0L) return containsZero;
+
+        int index = hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) return true;
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 全要素を削除（配列は再利用する）
+     */
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(keys, 0L);
+        containsZero = false;
+        size = 0;
+    }
+
+    public void forEach(LongConsumer action) {
+        if (containsZero) action.accept(0L);
+        for (long key : keys) {
+            if (key != 0L) action.accept(key);
+        }
+    }
+
+    /**
+     * このセットにあって other にない要素を列挙する（差集合、割り当てなし）
+     */
+    public void forEachNotIn(LongHashSet other, LongConsumer action) {
+        if (containsZero && !other.containsZero) action.accept(0L);
+        for (long key : keys) {
+            if (key != 0L && !other.contains(key)) action.accept(key);
+        }
+    }
+
+    /**
+     * 削除後に後続のクラスタを詰め直す（トゥームストーンを使わない）
+     */
+    private void shiftKeys(int index) {
+        int last;
+        long key;
+        while (true) {
+            last = index;
+            index = (index + 1) & mask;
+            while (true) {
+                if ((key = keys[index]) == 0L) return;
+                int slot = hash(key) & mask;
+                // slot が (last, index] の範囲外であれば last へ移動できる
+                if (last <= index ? (last >= slot || slot > index) : (last >= slot && slot > index)) break;
+                index = (index + 1) & mask;
+            }
+            keys[last] = key;
+            keys[index] = 0L;
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        allocate(newCapacity);
+        for (long key : oldKeys) {
+            if (key == 0L) continue;
+            int index = hash(key) & mask;
+            while (keys[index] != 0L) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    static int tableSizeFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 2) - 1) << 1;
+        return Math.max(capacity, DEFAULT_CAPACITY);
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+}
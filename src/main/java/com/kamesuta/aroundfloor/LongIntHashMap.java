@@ -0,0 +1,211 @@
+package com.kamesuta.aroundfloor;
+
+import java.util.Arrays;
+
+/**
+ * longキー・int値専用のオープンアドレス法ハッシュマップ（参照カウント用）
+ * <p>
+ * 値が0になったエントリは削除する（値0と未登録を区別しない）。
+ * キー0は配列上の空きスロットを表すため、別フィールドで管理する。
+ * スレッドセーフではない。
+ */
+public final class LongIntHashMap {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+    private boolean containsZero;
+    private int zeroValue;
+
+    /**
+     * エントリ列挙用のコールバック
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long key, int value);
+    }
+
+    public LongIntHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        allocate(LongHashSet.tableSizeFor(expectedSize));
+    }
+
+    /**
+     * 値を取得（未登録なら0）
+     */
+    public int get(long key) {
+        if (key == 0L) return containsZero ? zeroValue : 0;
+
+        int index = LongHashSet.hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) return values[index];
+            index = (index + 1) & mask;
+        }
+        return 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0L) return containsZero;
+
+        int index = LongHashSet.hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) return true;
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * 値に delta を加える（結果が0になったエントリは削除）
+     *
+     * @return 加算後の値
+     */
+    public int addTo(long key, int delta) {
+        if (key == 0L) {
+            int value = (containsZero ? zeroValue : 0) + delta;
+            if (value == 0) {
+                if (containsZero) {
+                    containsZero = false;
+                    size--;
+                }
+            } else if (!containsZero) {
+                containsZero = true;
+                size++;
+            }
+            zeroValue = value;
+            return value;
+        }
+
+        int index = LongHashSet.hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) {
+                int value = values[index] + delta;
+                if (value == 0) {
+                    keys[index] = 0L;
+                    values[index] = 0;
+                    size--;
+                    shiftKeys(index);
+                } else {
+                    values[index] = value;
+                }
+                return value;
+            }
+            index = (index + 1) & mask;
+        }
+        if (delta == 0) return 0;
+
+        keys[index] = key;
+        values[index] = delta;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return delta;
+    }
+
+    /**
+     * エントリを削除
+     *
+     * @return 削除された値（なければ0）
+     */
+    public int remove(long key) {
+        if (key == 0L) {
+            if (!containsZero) return 0;
+            int old = zeroValue;
+            containsZero = false;
+            zeroValue = 0;
+            size--;
+            return old;
+        }
+
+        int index = LongHashSet.hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) {
+                int old = values[index];
+                keys[index] = 0L;
+                values[index] = 0;
+                size--;
+                shiftKeys(index);
+                return old;
+            }
+            index = (index + 1) & mask;
+        }
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(keys, 0L);
+        Arrays.fill(values, 0);
+        containsZero = false;
+        zeroValue = 0;
+        size = 0;
+    }
+
+    public void forEach(EntryConsumer action) {
+        if (containsZero) action.accept(0L, zeroValue);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0L) action.accept(keys[i], values[i]);
+        }
+    }
+
+    private void shiftKeys(int index) {
+        int last;
+        long key;
+        while (true) {
+            last = index;
+            index = (index + 1) & mask;
+            while (true) {
+                if ((key = keys[index]) == 0L) return;
+                int slot = LongHashSet.hash(key) & mask;
+                if (last <= index ? (last >= slot || slot > index) : (last >= slot && slot > index)) break;
+                index = (index + 1) & mask;
+            }
+            keys[last] = key;
+            values[last] = values[index];
+            keys[index] = 0L;
+            values[index] = 0;
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key == 0L) continue;
+            int index = LongHashSet.hash(key) & mask;
+            while (keys[index] != 0L) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+}
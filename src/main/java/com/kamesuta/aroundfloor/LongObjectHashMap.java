@@ -0,0 +1,209 @@
+package com.kamesuta.aroundfloor;
+
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+/**
+ * longキー専用のオープンアドレス法ハッシュマップ
+ * <p>
+ * キー0は配列上の空きスロットを表すため、別フィールドで管理する。
+ * スレッドセーフではない。
+ *
+ * @param <V> 値の型
+ */
+public final class LongObjectHashMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+    private boolean containsZero;
+    private Object zeroValue;
+
+    /**
+     * エントリ列挙用のコールバック
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    public LongObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongObjectHashMap(int expectedSize) {
+        allocate(LongHashSet.tableSizeFor(expectedSize));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == 0L) return containsZero ? (V) zeroValue : null;
+
+        int index = LongHashSet.hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) return (V) values[index];
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0L) return containsZero;
+
+        int index = LongHashSet.hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) return true;
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * 値を設定
+     *
+     * @return 以前の値（なければnull）
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key == 0L) {
+            V old = (V) zeroValue;
+            if (!containsZero) {
+                containsZero = true;
+                size++;
+            }
+            zeroValue = value;
+            return old;
+        }
+
+        int index = LongHashSet.hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) {
+                V old = (V) values[index];
+                values[index] = value;
+                return old;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    public V computeIfAbsent(long key, LongFunction<V> mappingFunction) {
+        V value = get(key);
+        if (value == null) {
+            value = mappingFunction.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * エントリを削除
+     *
+     * @return 削除された値（なければnull）
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == 0L) {
+            if (!containsZero) return null;
+            V old = (V) zeroValue;
+            containsZero = false;
+            zeroValue = null;
+            size--;
+            return old;
+        }
+
+        int index = LongHashSet.hash(key) & mask;
+        long existing;
+        while ((existing = keys[index]) != 0L) {
+            if (existing == key) {
+                V old = (V) values[index];
+                keys[index] = 0L;
+                values[index] = null;
+                size--;
+                shiftKeys(index);
+                return old;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(keys, 0L);
+        Arrays.fill(values, null);
+        containsZero = false;
+        zeroValue = null;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<V> action) {
+        if (containsZero) action.accept(0L, (V) zeroValue);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0L) action.accept(keys[i], (V) values[i]);
+        }
+    }
+
+    private void shiftKeys(int index) {
+        int last;
+        long key;
+        while (true) {
+            last = index;
+            index = (index + 1) & mask;
+            while (true) {
+                if ((key = keys[index]) == 0L) return;
+                int slot = LongHashSet.hash(key) & mask;
+                if (last <= index ? (last >= slot || slot > index) : (last >= slot && slot > index)) break;
+                index = (index + 1) & mask;
+            }
+            keys[last] = key;
+            values[last] = values[index];
+            keys[index] = 0L;
+            values[index] = null;
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key == 0L) continue;
+            int index = LongHashSet.hash(key) & mask;
+            while (keys[index] != 0L) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+}
@@ -0,0 +1,102 @@
+package com.kamesuta.aroundfloor;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ホットパスの計測値（常時有効にできる軽さで記録する）
+ * <p>
+ * 時間はナノ秒で記録し、表示時にミリ秒へ変換する。
+ */
+final class Metrics {
+    /**
+     * 表示・出力用の系列
+     */
+    static final class Series {
+        final String name;
+        final Histogram histogram;
+        // 値がナノ秒か（falseなら個数）
+        final boolean nanos;
+
+        Series(String name, Histogram histogram, boolean nanos) {
+            this.name = name;
+            this.histogram = histogram;
+            this.nanos = nanos;
+        }
+    }
+
+    // スキャン（索引の構築と列の走査、ワーカースレッド）
+    final Histogram scanNanos = new Histogram();
+    // 差分計算（ワーカースレッド）
+    final Histogram diffNanos = new Histogram();
+    // スキャン結果の反映（メインスレッド）
+    final Histogram applyNanos = new Histogram();
+    // 1回の更新で走査したブロック数
+    final Histogram scannedBlocks = new Histogram();
+    // 1tickあたりの書き込み数と時間
+    final Histogram writesPerTick = new Histogram();
+    final Histogram writeNanosPerTick = new Histogram();
+    // tick開始時の書き込み待ちの数
+    final Histogram queueDepth = new Histogram();
+
+    final LongAdder fullScans = new LongAdder();
+    final LongAdder deltaScans = new LongAdder();
+    final LongAdder discardedScans = new LongAdder();
+    // 他のプレイヤーとまとめて走査したスキャンの数
+    final LongAdder clusteredScans = new LongAdder();
+    // 先読みで索引の構築を始めたチャンクの数
+    final LongAdder prefetchedChunks = new LongAdder();
+    // 内側の範囲が前回の円に収まっていたためスキャンを省略した更新の数
+    final LongAdder innerCoveredUpdates = new LongAdder();
+    final LongAdder writes = new LongAdder();
+    final LongAdder sourceChanges = new LongAdder();
+
+    private final List<Series> series = List.of(
+        new Series("scan", scanNanos, true),
+        new Series("diff", diffNanos, true),
+        new Series("apply", applyNanos, true),
+        new Series("scanned-blocks", scannedBlocks, false),
+        new Series("writes-per-tick", writesPerTick, false),
+        new Series("write-time-per-tick", writeNanosPerTick, true),
+        new Series("queue-depth", queueDepth, false)
+    );
+
+    List<Series> getSeries() {
+        return series;
+    }
+
+    /**
+     * スキャン1回分の結果を記録
+     */
+    void recordScan(ScanJob job, long applyTime) {
+        (job.fullScan ? fullScans : deltaScans).increment();
+        scanNanos.record(job.scanNanos);
+        diffNanos.record(job.diffNanos);
+        scannedBlocks.record(job.scannedBlocks);
+        applyNanos.record(applyTime);
+    }
+
+    /**
+     * 記録をすべて破棄
+     */
+    void reset() {
+        for (Series s : series) {
+            s.histogram.reset();
+        }
+        fullScans.reset();
+        deltaScans.reset();
+        discardedScans.reset();
+        clusteredScans.reset();
+        prefetchedChunks.reset();
+        innerCoveredUpdates.reset();
+        writes.reset();
+        sourceChanges.reset();
+    }
+
+    /**
+     * 表示用の値（ナノ秒ならミリ秒に変換）
+     */
+    static String format(Series s, double value) {
+        return s.nanos ? String.format("%.2fms", value / 1_000_000.0) : String.format("%.0f", value);
+    }
+}
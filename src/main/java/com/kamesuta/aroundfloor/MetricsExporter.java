@@ -0,0 +1,127 @@
+package com.kamesuta.aroundfloor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * 計測値を定期的にファイルへ追記する（CSV または 1行1オブジェクトのJSON）
+ * <p>
+ * 値の収集はメインスレッド（Folia ではグローバルリージョン）、ファイルへの書き込みは非同期で行う。
+ * 値は有効化（またはリセット）からの累計。
+ */
+final class MetricsExporter {
+    private final AroundFloorPlugin plugin;
+    private final BlockManager blockManager;
+    private final Config config;
+    private Scheduling.Task task;
+
+    MetricsExporter(AroundFloorPlugin plugin, BlockManager blockManager, Config config) {
+        this.plugin = plugin;
+        this.blockManager = blockManager;
+        this.config = config;
+    }
+
+    /**
+     * 出力を開始（間隔が0なら何もしない）
+     */
+    void start() {
+        stop();
+        int interval = config.getMetricsExportInterval();
+        if (interval <= 0) return;
+
+        long ticks = interval * 20L;
+        task = plugin.getScheduling().runGlobalTimer(this::export, ticks, ticks);
+    }
+
+    void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private void export() {
+        Metrics metrics = blockManager.getMetrics();
+        boolean json = config.getMetricsExportFormat() == Config.MetricsFormat.JSON;
+        File file = new File(plugin.getDataFolder(), json ? "metrics.jsonl" : "metrics.csv");
+        String header = json ? null : buildCsvHeader(metrics);
+        String line = json ? buildJson(metrics) : buildCsv(metrics);
+
+        plugin.getScheduling().runAsync(() -> {
+            try {
+                StringBuilder text = new StringBuilder();
+                if (header != null && !file.exists()) {
+                    text.append(header).append('\n');
+                }
+                text.append(line).append('\n');
+                Files.writeString(file.toPath(), text, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                plugin.getLogger().warning("計測値の出力中にエラーが発生しました: " + e.getMessage());
+            }
+        });
+    }
+
+    private static String buildCsvHeader(Metrics metrics) {
+        StringBuilder header = new StringBuilder("time,players,full_scans,delta_scans,discarded_scans,clustered_scans,prefetched_chunks,inner_covered_updates,writes,source_changes");
+        for (Metrics.Series s : metrics.getSeries()) {
+            String name = s.name.replace('-', '_');
+            String unit = s.nanos ? "_ns" : "";
+            header.append(',').append(name).append("_count")
+                .append(',').append(name).append("_p50").append(unit)
+                .append(',').append(name).append("_p99").append(unit)
+                .append(',').append(name).append("_max").append(unit);
+        }
+        return header.toString();
+    }
+
+    private String buildCsv(Metrics metrics) {
+        StringBuilder line = new StringBuilder()
+            .append(Instant.now()).append(',')
+            .append(blockManager.getPlayerCount()).append(',')
+            .append(metrics.fullScans.sum()).append(',')
+            .append(metrics.deltaScans.sum()).append(',')
+            .append(metrics.discardedScans.sum()).append(',')
+            .append(metrics.clusteredScans.sum()).append(',')
+            .append(metrics.prefetchedChunks.sum()).append(',')
+            .append(metrics.innerCoveredUpdates.sum()).append(',')
+            .append(metrics.writes.sum()).append(',')
+            .append(metrics.sourceChanges.sum());
+        for (Metrics.Series s : metrics.getSeries()) {
+            Histogram h = s.histogram;
+            line.append(',').append(h.getCount())
+                .append(',').append(h.getPercentile(50))
+                .append(',').append(h.getPercentile(99))
+                .append(',').append(h.getMax());
+        }
+        return line.toString();
+    }
+
+    private String buildJson(Metrics metrics) {
+        StringBuilder line = new StringBuilder()
+            .append("{\"time\":\"").append(Instant.now()).append('"')
+            .append(",\"players\":").append(blockManager.getPlayerCount())
+            .append(",\"fullScans\":").append(metrics.fullScans.sum())
+            .append(",\"deltaScans\":").append(metrics.deltaScans.sum())
+            .append(",\"discardedScans\":").append(metrics.discardedScans.sum())
+            .append(",\"clusteredScans\":").append(metrics.clusteredScans.sum())
+            .append(",\"prefetchedChunks\":").append(metrics.prefetchedChunks.sum())
+            .append(",\"innerCoveredUpdates\":").append(metrics.innerCoveredUpdates.sum())
+            .append(",\"writes\":").append(metrics.writes.sum())
+            .append(",\"sourceChanges\":").append(metrics.sourceChanges.sum());
+        for (Metrics.Series s : metrics.getSeries()) {
+            Histogram h = s.histogram;
+            line.append(",\"").append(s.name).append("\":{")
+                .append("\"unit\":\"").append(s.nanos ? "ns" : "count").append('"')
+                .append(",\"count\":").append(h.getCount())
+                .append(",\"p50\":").append(h.getPercentile(50))
+                .append(",\"p99\":").append(h.getPercentile(99))
+                .append(",\"max\":").append(h.getMax())
+                .append('}');
+        }
+        return line.append('}').toString();
+    }
+}
@@ -0,0 +1,163 @@
+package com.kamesuta.aroundfloor;
+
+import java.util.Arrays;
+
+/**
+ * 表示レイヤーを書き換える前の元のブロック（WorldDisplay の区画1つ分）
+ * <p>
+ * 表示ブロックを配置している位置ごとに、最初に上書きする前の内容を BlockPalette の番号で保持する。
+ * チャンクセクション（16×16×16）ごとにセクション内のパレットとビット詰めの配列で圧縮し、
+ * 保持している位置がなくなったセクションは破棄する。
+ * スレッドセーフではない（持ち主の Shard のロックを持っている間だけ使用する、Folia では複数のリージョンのスレッドから順に触る）。
+ */
+final class OriginalStore {
+    private final LongObjectHashMap<Section> sections = new LongObjectHashMap<>();
+
+    /**
+     * 保持している元のブロック
+     *
+     * @return BlockPalette の番号（保持していなければ -1）
+     */
+    int get(long displayPos) {
+        Section section = sections.get(BlockPos.sectionKeyOf(displayPos));
+        return section != null ? section.get(indexOf(displayPos)) : Section.EMPTY;
+    }
+
+    /**
+     * 元のブロックを保持（既に保持している場合は最初の内容を残す）
+     */
+    void put(long displayPos, int paletteId) {
+        Section section = sections.computeIfAbsent(BlockPos.sectionKeyOf(displayPos), k -> new Section());
+        int index = indexOf(displayPos);
+        if (section.get(index) != Section.EMPTY) return;
+        section.set(index, paletteId);
+    }
+
+    /**
+     * 元のブロックを取り出して保持をやめる
+     *
+     * @return BlockPalette の番号（保持していなければ -1）
+     */
+    int take(long displayPos) {
+        long sectionKey = BlockPos.sectionKeyOf(displayPos);
+        Section section = sections.get(sectionKey);
+        if (section == null) return -1;
+
+        int index = indexOf(displayPos);
+        int paletteId = section.get(index);
+        if (paletteId == Section.EMPTY) return -1;
+
+        section.clear(index);
+        if (section.count == 0) {
+            sections.remove(sectionKey);
+        }
+        return paletteId;
+    }
+
+    /**
+     * 1チャンク分の元のブロックをすべて取り出して保持をやめる
+     */
+    void takeChunk(int chunkX, int chunkZ, int minSectionY, int maxSectionY, LongIntHashMap.EntryConsumer action) {
+        for (int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+            Section section = sections.remove(BlockPos.pack(chunkX, sectionY, chunkZ));
+            if (section == null) continue;
+
+            for (int index = 0; index < Section.SIZE; index++) {
+                int paletteId = section.get(index);
+                if (paletteId == Section.EMPTY) continue;
+                action.accept(BlockPos.pack((chunkX << 4) | (index & 15), (sectionY << 4) | (index >> 8), (chunkZ << 4) | ((index >> 4) & 15)), paletteId);
+            }
+        }
+    }
+
+    /**
+     * 保持している位置の数
+     */
+    int size() {
+        int[] count = {0};
+        sections.forEach((sectionKey, section) -> count[0] += section.count);
+        return count[0];
+    }
+
+    private static int indexOf(long displayPos) {
+        return (BlockPos.getY(displayPos) & 15) << 8 | (BlockPos.getZ(displayPos) & 15) << 4 | (BlockPos.getX(displayPos) & 15);
+    }
+
+    /**
+     * 1チャンクセクション分の元のブロック（セクション内パレット + ビット詰め）
+     * <p>
+     * セクション内の番号0は「保持していない」を表す。パレットに空きがなくなったら1件あたりのビット数を倍にする。
+     */
+    private static final class Section {
+        // get() の戻り値で「保持していない」を表す
+        static final int EMPTY = -1;
+
+        private static final int SIZE = 16 * 16 * 16;
+
+        // セクション内の番号 → BlockPalette の番号（0番は未使用）
+        private int[] palette = new int[4];
+        private int paletteSize = 1;
+
+        // 1件あたりのビット数（2, 4, 8, 16）
+        private int bits = 2;
+        private long[] data = new long[SIZE * 2 / 64];
+
+        // 保持している位置の数
+        int count;
+
+        int get(int index) {
+            int local = getLocal(index);
+            return local == 0 ? EMPTY : palette[local];
+        }
+
+        void set(int index, int paletteId) {
+            if (getLocal(index) == 0) count++;
+            setLocal(index, localOf(paletteId));
+        }
+
+        void clear(int index) {
+            if (getLocal(index) != 0) count--;
+            setLocal(index, 0);
+        }
+
+        private int localOf(int paletteId) {
+            for (int i = 1; i < paletteSize; i++) {
+                if (palette[i] == paletteId) return i;
+            }
+            if (paletteSize == 1 << bits) {
+                resize(bits << 1);
+            }
+            if (paletteSize == palette.length) {
+                palette = Arrays.copyOf(palette, palette.length << 1);
+            }
+            palette[paletteSize] = paletteId;
+            return paletteSize++;
+        }
+
+        private int getLocal(int index) {
+            int perLong = 64 / bits;
+            long word = data[index / perLong];
+            return (int) (word >>> ((index % perLong) * bits)) & ((1 << bits) - 1);
+        }
+
+        private void setLocal(int index, int value) {
+            int perLong = 64 / bits;
+            int shift = (index % perLong) * bits;
+            long mask = ((1L << bits) - 1) << shift;
+            int word = index / perLong;
+            data[word] = (data[word] & ~mask) | ((long) value << shift);
+        }
+
+        private void resize(int newBits) {
+            int[] values = new int[SIZE];
+            for (int i = 0; i < SIZE; i++) {
+                values[i] = getLocal(i);
+            }
+            bits = newBits;
+            data = new long[SIZE * newBits / 64];
+            for (int i = 0; i < SIZE; i++) {
+                if (values[i] != 0) setLocal(i, values[i]);
+            }
+        }
+    }
+}
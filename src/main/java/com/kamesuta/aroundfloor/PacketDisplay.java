@@ -0,0 +1,240 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ブロック変更パケットだけで表示する（ワールドは書き換えない、プレイヤーごとの表示）
+ * <p>
+ * 変更はチャンクセクションごとにまとめ、キューの実行の終わりにまとめて送信する。
+ * ブロックの読み取りと送信はプレイヤーを所有するスレッドで行う（Folia ではプレイヤーのリージョン）。
+ */
+final class PacketDisplay implements DisplayBackend {
+    private final AroundFloorPlugin plugin;
+    private final Config config;
+    private final WriteScheduler writeScheduler;
+    private final Scheduling scheduling;
+    private final Tracer tracer;
+
+    // プレイヤーごとの書き込みキュー
+    private final Map<UUID, WriteQueue> writeQueues;
+
+    PacketDisplay(AroundFloorPlugin plugin, Config config, WriteScheduler writeScheduler, Tracer tracer) {
+        this.plugin = plugin;
+        this.config = config;
+        this.writeScheduler = writeScheduler;
+        this.scheduling = plugin.getScheduling();
+        this.tracer = tracer;
+        this.writeQueues = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void show(PlayerState state, World world, long sourcePos) {
+        int displayY = config.calculateDisplayY(BlockPos.getY(sourcePos));
+        if (!config.isInDisplayRange(displayY)) return;
+
+        long displayPos = BlockPos.withY(sourcePos, displayY);
+        getWriteQueue(state, world).enqueuePlace(displayPos, WriteQueue.priorityOf(state, displayPos));
+    }
+
+    @Override
+    public void hide(PlayerState state, World world, long sourcePos) {
+        hide(state, world, sourcePos, config.getLayout());
+    }
+
+    @Override
+    public void hideBatch(PlayerState state, World world, LongArrayList sourcePositions, Config.Layout layout) {
+        sourcePositions.forEach(sourcePos -> hide(state, world, sourcePos, layout));
+    }
+
+    private void hide(PlayerState state, World world, long sourcePos, Config.Layout layout) {
+        int displayY = layout.calculateDisplayY(BlockPos.getY(sourcePos));
+        if (!layout.isInDisplayRange(displayY)) return;
+
+        long displayPos = BlockPos.withY(sourcePos, displayY);
+        getWriteQueue(state, world).enqueueRemove(displayPos, WriteQueue.priorityOf(state, displayPos));
+    }
+
+    @Override
+    public void refresh(PlayerState state, World world, long sourcePos) {
+        int displayY = config.calculateDisplayY(BlockPos.getY(sourcePos));
+        if (!config.isInDisplayRange(displayY)) return;
+
+        // 配置を送り直す（配置時に対象ブロックを読み直す、後から外れた場合は相殺せずに削除する）
+        long displayPos = BlockPos.withY(sourcePos, displayY);
+        getWriteQueue(state, world).enqueueRewrite(displayPos, WriteQueue.priorityOf(state, displayPos));
+    }
+
+    @Override
+    public void hideAll(PlayerState state) {
+        WriteQueue queue = writeQueues.remove(state.playerId);
+        if (queue != null) {
+            writeScheduler.unregister(queue);
+        }
+
+        // 退出・ワールド移動時はクライアント側の表示も破棄されるため送信不要
+        // オンラインのまま可視化を終了した場合（権限を失ったなど）は実際のブロックを送り直す（プレイヤーのスレッドで呼ばれる）
+        Player player = plugin.getServer().getPlayer(state.playerId);
+        World world = state.world;
+        if (player == null || !player.isOnline() || world == null || !world.equals(player.getWorld())) return;
+        if (queue == null) {
+            queue = new WriteQueue(new PacketWriteHandler(state.playerId, state.slot, world));
+        }
+        WriteQueue removals = queue;
+        state.visibleBlocks.forEach(sourcePos -> {
+            int displayY = config.calculateDisplayY(BlockPos.getY(sourcePos));
+            if (!config.isInDisplayRange(displayY)) return;
+            long displayPos = BlockPos.withY(sourcePos, displayY);
+            removals.enqueueRemove(displayPos, WriteQueue.priorityOf(state, displayPos));
+        });
+        removals.drain(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onChunkUnload(World world, int chunkX, int chunkZ) {
+        // クライアント側でもチャンクごと破棄されるため何もしない（送信はハンドラーで読み飛ばす）
+    }
+
+    @Override
+    public void onChunksLoaded(World world, LongHashSet chunkKeys, Collection<PlayerState> states) {
+        // 読み込まれたチャンクに含まれる可視化ブロックを送り直す（可視化ブロックはプレイヤーのスレッドで読む）
+        for (PlayerState state : states) {
+            Player player = plugin.getServer().getPlayer(state.playerId);
+            if (player == null) continue;
+            scheduling.runForEntity(player, () -> {
+                if (!state.hasCenter || !world.equals(state.world)) return;
+                state.visibleBlocks.forEach(sourcePos -> {
+                    if (chunkKeys.contains(BlockPos.chunkKeyOf(sourcePos))) {
+                        show(state, world, sourcePos);
+                    }
+                });
+            });
+        }
+    }
+
+    private WriteQueue getWriteQueue(PlayerState state, World world) {
+        return writeQueues.computeIfAbsent(state.playerId, k -> {
+            WriteQueue queue = new WriteQueue(new PacketWriteHandler(state.playerId, state.slot, world));
+            writeScheduler.register(queue);
+            return queue;
+        });
+    }
+
+    /**
+     * プレイヤーへのブロック変更パケット送信
+     * <p>
+     * キューの実行中は位置をためるだけで、実行の終わりにプレイヤーのスレッドでブロックを読み取って送信する
+     */
+    private final class PacketWriteHandler implements WriteQueue.Handler {
+        private final UUID playerId;
+        private final int slot;
+        private final World world;
+
+        // 送信待ちの位置
+        private LongArrayList places = new LongArrayList();
+        private LongArrayList removes = new LongArrayList();
+
+        PacketWriteHandler(UUID playerId, int slot, World world) {
+            this.playerId = playerId;
+            this.slot = slot;
+            this.world = world;
+        }
+
+        @Override
+        public void place(long displayPos) {
+            places.add(displayPos);
+        }
+
+        @Override
+        public void remove(long displayPos) {
+            removes.add(displayPos);
+        }
+
+        @Override
+        public void endBatch() {
+            Player player = plugin.getServer().getPlayer(playerId);
+            if (player == null) {
+                places.clear();
+                removes.clear();
+                return;
+            }
+
+            // 実行中のキューとは別のリストに渡す
+            LongArrayList placed = places;
+            LongArrayList removed = removes;
+            places = new LongArrayList();
+            removes = new LongArrayList();
+            scheduling.runForEntity(player, () -> send(player, placed, removed));
+        }
+
+        private void send(Player player, LongArrayList placed, LongArrayList removed) {
+            // 送信する変更（チャンクセクションごと）
+            LongObjectHashMap<List<BlockState>> sections = new LongObjectHashMap<>();
+            placed.forEach(displayPos -> place(sections, displayPos));
+            removed.forEach(displayPos -> remove(sections, displayPos));
+
+            // チャンクセクション単位でまとめて送信（セクションごとに1パケット）
+            sections.forEach((sectionKey, blockStates) -> player.sendBlockChanges(blockStates));
+        }
+
+        private void place(LongObjectHashMap<List<BlockState>> sections, long displayPos) {
+            int x = BlockPos.getX(displayPos);
+            int displayY = BlockPos.getY(displayPos);
+            int z = BlockPos.getZ(displayPos);
+            if (!world.isChunkLoaded(x >> 4, z >> 4)) return;
+
+            // 表示位置の実ブロックの状態を複製し、見た目だけコピー元に差し替える
+            BlockData data = world.getBlockAt(x, displayY - config.getYOffset(), z).getBlockData();
+            BlockState blockState = world.getBlockAt(x, displayY, z).getState();
+            blockState.setBlockData(data);
+            queue(sections, displayPos, blockState);
+            tracer.record(Tracer.Type.PLACE, displayPos, slot, 0);
+        }
+
+        private void remove(LongObjectHashMap<List<BlockState>> sections, long displayPos) {
+            // アンロード済みのチャンクはクライアント側でも破棄されている
+            int x = BlockPos.getX(displayPos);
+            int z = BlockPos.getZ(displayPos);
+            if (!world.isChunkLoaded(x >> 4, z >> 4)) return;
+
+            // 実際のブロックを送り直す
+            queue(sections, displayPos, world.getBlockAt(x, BlockPos.getY(displayPos), z).getState());
+            tracer.record(Tracer.Type.REMOVE, displayPos, slot, 0);
+        }
+
+        private void queue(LongObjectHashMap<List<BlockState>> sections, long displayPos, BlockState blockState) {
+            sections.computeIfAbsent(BlockPos.sectionKeyOf(displayPos), k -> new ArrayList<>()).add(blockState);
+        }
+    }
+
+    @Override
+    public int getDisplayedBlockCount(Collection<PlayerState> states) {
+        // プレイヤーごとの表示のため、各プレイヤーの可視化ブロック数の合計
+        return states.stream()
+            .mapToInt(state -> state.visibleBlocks.size())
+            .sum();
+    }
+
+    @Override
+    public void cleanup(Collection<PlayerState> states) {
+        // ワールドは変更していないため、オンラインのプレイヤーに実際のブロックを送り直すだけ
+        // Folia では無効化中にプレイヤーのリージョンで読み取れないため送らない（チャンクの再送信で元に戻る）
+        if (!scheduling.isRegionized()) {
+            for (PlayerState state : states) {
+                if (state.world == null) continue;
+                World world = state.world;
+                WriteQueue queue = getWriteQueue(state, world);
+                state.visibleBlocks.forEach(sourcePos -> hide(state, world, sourcePos));
+                queue.drain(Integer.MAX_VALUE, Long.MAX_VALUE);
+            }
+        }
+
+        writeQueues.values().forEach(writeScheduler::unregister);
+        writeQueues.clear();
+    }
+}
@@ -0,0 +1,88 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.UUID;
+
+/**
+ * オンラインのプレイヤー1人分の記録（ParticipantRegistry のスロットに1つずつ）
+ * <p>
+ * 移動イベントと更新スケジューラーはこの記録だけを読み、権限の確認やプレイヤーごとのマップの検索を行わない。
+ * 可視化状態（PlayerState）もこの記録が持ち、BlockManager はスロット番号で引く（プレイヤーごとのマップは持たない）。
+ * 位置はプレイヤーのスレッド、更新の選択はメインスレッド（Folia ではグローバルリージョン）から読み書きする。
+ */
+final class Participant {
+    final Player player;
+    final UUID playerId;
+
+    // スロット番号（ParticipantRegistry の配列の位置、全体再スキャンの位相にも使う）
+    final int slot;
+
+    // 可視化状態（権限を持ち、可視化の対象の間だけ非null、BlockManager が作成・破棄する）
+    // 権限は参加・ワールド移動・コマンド一覧の再送信・定期的な確認のときだけ調べる
+    volatile PlayerState state;
+
+    // 現在のワールドと、前回記録したブロック位置
+    World world;
+    int blockX;
+    int blockY;
+    int blockZ;
+
+    // 以下の印と更新時の値は Folia ではプレイヤーのスレッドが立て、グローバルリージョンの tick が読んで消すため volatile にする
+    // tick は印を消してから更新を送り出すので、消した後に立った印は次tickで必ず見える（消す前に立った印の移動は、
+    // 送り出した更新がプレイヤーの位置を読むときに含まれる）
+
+    // ブロックの境界をまたいだ（更新待ち）
+    volatile boolean dirty;
+
+    // 次tickで必ず更新する（テレポート時など）
+    volatile boolean urgent;
+
+    // 全体再スキャンの時期が来た
+    volatile boolean rescanDue;
+
+    // 前回更新時のtickと移動速度（ブロック/tick）
+    volatile long lastUpdateTick;
+    volatile double speed;
+
+    // 前回更新時の位置（プレイヤーのスレッドだけが読み書きする）
+    double lastX;
+    double lastZ;
+
+    // 今回のtickでの優先度（大きいほど先に更新、tick の中だけで使う）
+    double score;
+
+    Participant(Player player, int slot) {
+        this.player = player;
+        this.playerId = player.getUniqueId();
+        this.slot = slot;
+    }
+
+    /**
+     * 可視化の対象か
+     */
+    boolean isEnabled() {
+        return state != null;
+    }
+
+    /**
+     * 移動先のブロック位置を記録（プレイヤーのスレッドで呼ぶ）
+     *
+     * @param trackY 上下の移動も境界をまたいだものとみなすか
+     * @return ブロックの境界をまたいだか、ワールドが変わったか
+     */
+    boolean moveTo(Location to, boolean trackY) {
+        int x = to.getBlockX();
+        int y = to.getBlockY();
+        int z = to.getBlockZ();
+        World toWorld = to.getWorld();
+        boolean moved = x != blockX || z != blockZ || (trackY && y != blockY) || toWorld != world;
+        blockX = x;
+        blockY = y;
+        blockZ = z;
+        world = toWorld;
+        return moved;
+    }
+}
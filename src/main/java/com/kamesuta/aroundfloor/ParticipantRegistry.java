@@ -0,0 +1,103 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * オンラインのプレイヤーの記録（スロット番号で引ける配列）
+ * <p>
+ * プレイヤーごとに1つの Participant を持ち、スロット番号は0から詰めて割り当てる（スロット番号の割り当てはここだけで行う）。
+ * UUID で引くのは参加・退出・移動イベントなど Player しか持たない入口だけで、それ以降は記録かスロット番号を渡す。
+ * 登録・削除は同期化し、配列は書き換えずに複製して差し替える（tickの処理は配列を読むだけで、ロックを取らない）。
+ */
+final class ParticipantRegistry {
+    private final Map<UUID, Participant> byId = new ConcurrentHashMap<>();
+    private final BitSet usedSlots = new BitSet();
+    private volatile Participant[] bySlot = new Participant[16];
+
+    /**
+     * プレイヤーを登録（既に登録されている場合は先に unregister しておく）
+     */
+    synchronized Participant register(Player player) {
+        int slot = usedSlots.nextClearBit(0);
+        usedSlots.set(slot);
+        Participant participant = new Participant(player, slot);
+
+        Participant[] slots = Arrays.copyOf(bySlot, Math.max(bySlot.length, Integer.highestOneBit(slot) << 1));
+        slots[slot] = participant;
+        bySlot = slots;
+        byId.put(participant.playerId, participant);
+        return participant;
+    }
+
+    /**
+     * プレイヤーの登録を削除
+     *
+     * @return 削除した記録（登録されていない場合はnull）
+     */
+    synchronized Participant unregister(UUID playerId) {
+        Participant participant = byId.remove(playerId);
+        if (participant == null) return null;
+
+        Participant[] slots = bySlot.clone();
+        slots[participant.slot] = null;
+        bySlot = slots;
+        usedSlots.clear(participant.slot);
+        return participant;
+    }
+
+    Participant get(UUID playerId) {
+        return byId.get(playerId);
+    }
+
+    /**
+     * スロット番号の記録（空きスロットは null）
+     */
+    Participant get(int slot) {
+        Participant[] slots = bySlot;
+        return slot >= 0 && slot < slots.length ? slots[slot] : null;
+    }
+
+    /**
+     * 可視化の対象のプレイヤーの可視化状態（統計や照合用、呼び出しごとに複製する）
+     */
+    List<PlayerState> getStates() {
+        List<PlayerState> states = new ArrayList<>();
+        for (Participant participant : bySlot) {
+            PlayerState state = participant != null ? participant.state : null;
+            if (state != null) states.add(state);
+        }
+        return states;
+    }
+
+    /**
+     * 可視化の対象のプレイヤー数
+     */
+    int getEnabledCount() {
+        int count = 0;
+        for (Participant participant : bySlot) {
+            if (participant != null && participant.isEnabled()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * スロット番号ごとの記録（空きスロットは null、読み取り専用）
+     */
+    Participant[] getParticipants() {
+        return bySlot;
+    }
+
+    synchronized void clear() {
+        byId.clear();
+        usedSlots.clear();
+        bySlot = new Participant[16];
+    }
+}
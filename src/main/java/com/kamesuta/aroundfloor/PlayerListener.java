@@ -5,82 +5,87 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerCommandSendEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
-import org.bukkit.scheduler.BukkitRunnable;
-
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Map;
-import java.util.UUID;
+import org.bukkit.event.player.PlayerTeleportEvent;
 
 public class PlayerListener implements Listener {
+    // 権限を確認し直す間隔（tick、権限の変更を通知しない権限プラグイン向けの安全策）
+    private static final long PERMISSION_RECHECK_INTERVAL = 100L;
+    
     private final AroundFloorPlugin plugin;
     private final BlockManager blockManager;
     private final Config config;
     
-    // プレイヤーの最後の更新時間（レート制限用）
-    private final Map<UUID, Long> lastUpdateTime;
+    // オンラインのプレイヤーの記録（移動イベントでは権限を確認せずにここを読む）
+    private final ParticipantRegistry participants;
+    
+    // プレイヤーの更新をtickに分散して実行するスケジューラー
+    private final UpdateScheduler updateScheduler;
+    
+    // 権限の定期的な確認
+    private Scheduling.Task recheckTask;
     
     public PlayerListener(AroundFloorPlugin plugin, BlockManager blockManager, Config config) {
         this.plugin = plugin;
         this.blockManager = blockManager;
         this.config = config;
-        this.lastUpdateTime = new ConcurrentHashMap<>();
+        this.participants = blockManager.getParticipants();
+        this.updateScheduler = new UpdateScheduler(plugin, blockManager, config, participants);
         
-        // 定期的な更新タスクを開始
-        startPeriodicUpdateTask();
+        // 更新スケジューラーと権限の確認を開始
+        updateScheduler.start();
+        recheckTask = plugin.getScheduling().runGlobalTimer(this::recheckPermissions, PERMISSION_RECHECK_INTERVAL, PERMISSION_RECHECK_INTERVAL);
     }
     
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerMove(PlayerMoveEvent event) {
-        Player player = event.getPlayer();
-        
-        // 権限チェック
-        if (!player.hasPermission("aroundfloor.use")) {
-            return;
-        }
-        
-        Location from = event.getFrom();
         Location to = event.getTo();
         
         // toがnullの場合は処理しない
         if (to == null) return;
         
-        // ワールドが変わった場合は必ず更新
-        boolean worldChanged = !from.getWorld().equals(to.getWorld());
-        
-        // 移動距離が小さい場合はスキップ（ワールド変更時は除く）
-//        if (!worldChanged && from.distanceSquared(to) < 0.25) { // 0.5ブロック未満
-//            return;
-//        }
+        // 可視化の対象でないプレイヤーはスキップ（権限は記録の更新時に確認済み、ここで引くのは記録1つだけ）
+        Participant participant = participants.get(event.getPlayer().getUniqueId());
+        if (participant == null || !participant.isEnabled()) return;
         
-        // レート制限チェック
-        UUID playerId = player.getUniqueId();
-        long currentTime = System.currentTimeMillis();
-        Long lastUpdate = lastUpdateTime.get(playerId);
+        // ブロックの境界をまたいでいない場合はスキップ（視点の移動のみなど、縦の窓を使う場合は上下の移動も見る）
+        if (!participant.moveTo(to, config.getVerticalWindow() > 0)) return;
         
-//        if (!worldChanged && lastUpdate != null && (currentTime - lastUpdate) < 500) { // 0.5秒未満は無視
-//            return;
-//        }
+        // 更新待ちとして記録（実際の更新はスケジューラーが予算内で行う）
+        updateScheduler.markDirty(participant);
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        Player player = event.getPlayer();
         
-        lastUpdateTime.put(playerId, currentTime);
+        Participant participant = participants.get(player.getUniqueId());
+        if (participant == null || !participant.isEnabled()) return;
         
-        // 直接ブロック更新を実行（既にメインスレッド）
-        try {
-            blockManager.updateVisibleBlocks(player);
-        } catch (Exception e) {
-            plugin.getLogger().warning("プレイヤー " + player.getName() + " のブロック更新中にエラーが発生しました: " + e.getMessage());
-            if (config.isDebug()) {
-                e.printStackTrace();
-            }
+        // テレポート後は差分ではなく全体スキャン（位置はイベント後に反映されるため次tickで更新）
+        blockManager.requestFullScan(participant);
+        updateScheduler.markUrgent(participant);
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        // ワールドごとに権限が異なる場合があるため確認し直す
+        Participant participant = participants.get(event.getPlayer().getUniqueId());
+        if (participant != null) {
+            refresh(participant);
         }
-        
-        if (config.isDebug()) {
-            plugin.getLogger().info(player.getName() + " が移動しました: " + 
-                String.format("(%.1f, %.1f, %.1f) → (%.1f, %.1f, %.1f)", 
-                    from.getX(), from.getY(), from.getZ(),
-                    to.getX(), to.getY(), to.getZ()));
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerCommandSend(PlayerCommandSendEvent event) {
+        // 権限プラグインは権限の変更時にコマンド一覧を送り直すため、そのタイミングで確認し直す
+        Participant participant = participants.get(event.getPlayer().getUniqueId());
+        if (participant != null) {
+            plugin.getScheduling().runForEntity(participant.player, () -> refresh(participant));
         }
     }
     
@@ -88,15 +93,9 @@ public class PlayerListener implements Listener {
     public void onPlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
         
-        // 権限チェック
-        if (!player.hasPermission("aroundfloor.use")) {
-            return;
-        }
-        
-        // 直接プレイヤー初期化を実行（既にメインスレッド）
+        // 直接プレイヤー初期化を実行（既にメインスレッド、権限がない場合は記録だけ作る）
         try {
-            blockManager.onPlayerJoin(player);
-            blockManager.updateVisibleBlocks(player);
+            track(player);
         } catch (Exception e) {
             plugin.getLogger().warning("プレイヤー " + player.getName() + " の参加処理中にエラーが発生しました: " + e.getMessage());
             if (config.isDebug()) {
@@ -112,12 +111,10 @@ public class PlayerListener implements Listener {
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerQuit(PlayerQuitEvent event) {
         Player player = event.getPlayer();
-        UUID playerId = player.getUniqueId();
         
         // 直接クリーンアップを実行（既にメインスレッド）
         try {
-            blockManager.onPlayerQuit(player);
-            lastUpdateTime.remove(playerId);
+            untrack(player);
         } catch (Exception e) {
             plugin.getLogger().warning("プレイヤー " + player.getName() + " の退出処理中にエラーが発生しました: " + e.getMessage());
             if (config.isDebug()) {
@@ -131,42 +128,59 @@ public class PlayerListener implements Listener {
     }
     
     /**
-     * 定期的な更新タスクを開始
+     * プレイヤーを記録し、権限があれば更新対象に追加（参加時・プラグイン有効化時）
+     */
+    public void track(Player player) {
+        untrack(player);
+        refresh(participants.register(player));
+    }
+    
+    /**
+     * プレイヤーの記録を削除し、可視化を終了（退出時・参加し直したとき）
+     */
+    private void untrack(Player player) {
+        Participant participant = participants.unregister(player.getUniqueId());
+        if (participant != null) {
+            blockManager.onPlayerQuit(participant);
+        }
+    }
+    
+    /**
+     * 権限を確認し直し、変わった場合は可視化を開始・終了する（プレイヤーのスレッドで呼ぶ）
      */
-    private void startPeriodicUpdateTask() {
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                try {
-                    // オンラインの権限を持つプレイヤーをチェック（メインスレッドで実行）
-                    for (Player player : plugin.getServer().getOnlinePlayers()) {
-                        // 権限チェック
-                        if (!player.hasPermission("aroundfloor.use")) {
-                            continue;
-                        }
-                        
-                        try {
-                            blockManager.updateVisibleBlocks(player);
-                        } catch (Exception e) {
-                            plugin.getLogger().warning("プレイヤー " + player.getName() + " の定期更新中にエラーが発生しました: " + e.getMessage());
-                            if (config.isDebug()) {
-                                e.printStackTrace();
-                            }
-                        }
-                    }
-                    
-                    if (config.isDebug()) {
-                        plugin.getLogger().info("定期更新実行: " + blockManager.getStatistics());
-                    }
-                    
-                } catch (Exception e) {
-                    plugin.getLogger().warning("定期更新中にエラーが発生しました: " + e.getMessage());
-                    if (config.isDebug()) {
-                        e.printStackTrace();
-                    }
-                }
+    private void refresh(Participant participant) {
+        // 退出済み、または参加し直して記録が作り直された
+        if (participants.get(participant.playerId) != participant) return;
+        
+        Player player = participant.player;
+        participant.moveTo(player.getLocation(), true);
+        boolean enabled = player.hasPermission("aroundfloor.use");
+        if (enabled == participant.isEnabled()) return;
+        
+        if (enabled) {
+            updateScheduler.reset(participant);
+            blockManager.onPlayerJoin(participant);
+        } else {
+            blockManager.onPlayerQuit(participant);
+        }
+    }
+    
+    /**
+     * 全プレイヤーの権限を確認し直す（グローバルのスレッド、確認はプレイヤーのスレッドで行う）
+     */
+    private void recheckPermissions() {
+        for (Participant participant : participants.getParticipants()) {
+            if (participant != null) {
+                plugin.getScheduling().runForEntity(participant.player, () -> refresh(participant));
             }
-        }.runTaskTimer(plugin, 20L, config.getUpdateInterval()); // 1秒後に開始、設定間隔で実行
+        }
+    }
+    
+    /**
+     * 全プレイヤーの全体再スキャンを予約（設定の再読み込み時）
+     */
+    public void rescanAll() {
+        updateScheduler.rescanAll();
     }
     
     /**
@@ -176,7 +190,7 @@ public class PlayerListener implements Listener {
         if (config.isDebug()) {
             plugin.getLogger().info("=== AroundFloor統計情報 ===");
             plugin.getLogger().info(blockManager.getStatistics());
-            plugin.getLogger().info("アクティブプレイヤー数: " + lastUpdateTime.size());
+            plugin.getLogger().info("アクティブプレイヤー数: " + updateScheduler.size() + ", 更新待ち: " + updateScheduler.getPendingCount());
             plugin.getLogger().info("========================");
         }
     }
@@ -185,7 +199,11 @@ public class PlayerListener implements Listener {
      * リスナーのクリーンアップ
      */
     public void cleanup() {
-        lastUpdateTime.clear();
+        if (recheckTask != null) {
+            recheckTask.cancel();
+            recheckTask = null;
+        }
+        updateScheduler.stop();
         plugin.getLogger().info("PlayerListenerをクリーンアップしました");
     }
 } 
\ No newline at end of file
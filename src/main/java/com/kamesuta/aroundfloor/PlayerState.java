@@ -0,0 +1,67 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.World;
+
+import java.util.UUID;
+
+/**
+ * プレイヤーごとの可視化状態
+ */
+final class PlayerState {
+    final UUID playerId;
+
+    // プレイヤーのスロット番号（Participant と同じ、BlockManager はこの番号で記録を引く、トレースなどでも使う）
+    final int slot;
+
+    // 可視化ブロックが属するワールド
+    World world;
+
+    // 可視化中の対象ブロック座標（BlockPosでパック済み）
+    LongHashSet visibleBlocks = new LongHashSet();
+
+    // 再計算用のバッファ（visibleBlocksと入れ替えて使い回す、スキャン中はnull）
+    LongHashSet scratchBlocks = new LongHashSet();
+
+    // 可視化ブロックを計算したときの中心（差分スキャン用）
+    boolean hasCenter;
+    int centerX;
+    int centerZ;
+    int centerRange;
+
+    // 可視化ブロックを計算したときの縦の窓（対象レイヤーのY、窓の半分の高さが0の場合は窓なし）
+    int windowCenterY;
+    int centerWindow;
+
+    // 可視化ブロック数の割り当てに合わせて狭めた範囲（0で狭めない）
+    int budgetRange;
+
+    // 移動速度（ブロック/tick、先読みに使う）
+    double velocityX;
+    double velocityZ;
+
+    // 次回は全体スキャンを行う（テレポート時など）
+    boolean forceFullScan;
+
+    // スキャンの世代（ワールド変更などで古い結果を破棄するため）
+    int generation;
+
+    // 非同期スキャンが実行中か
+    boolean scanInFlight;
+
+    // スキャン実行中に更新要求があったか
+    boolean updatePending;
+
+    // スキャン実行中に変化した対象ブロック（スキャン結果の反映後に処理する）
+    final LongArrayList pendingSourceChanges = new LongArrayList();
+
+    // 計測値（メインスレッドで更新）
+    long scanCount;
+    long scanNanosTotal;
+    long scanNanosMax;
+    long lastScannedBlocks;
+
+    PlayerState(UUID playerId, int slot) {
+        this.playerId = playerId;
+        this.slot = slot;
+    }
+}
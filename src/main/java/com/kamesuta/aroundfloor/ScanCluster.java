@@ -0,0 +1,81 @@
+package com.kamesuta.aroundfloor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 近くにいるプレイヤーのスキャンをまとめて行う
+ * <p>
+ * メンバーの走査区間の和集合を行ごとに掃引し、各列の索引は1回だけ読んで、
+ * その列を区間に含むメンバー全員に渡す。差分計算はメンバーごとに行う。
+ * チャンクの索引（ChunkSet）はメンバー間で共有する。
+ */
+final class ScanCluster {
+    final List<ScanJob> jobs;
+    private final ScanJob.ChunkSet chunks;
+
+    ScanCluster(List<ScanJob> jobs, ScanJob.ChunkSet chunks) {
+        this.jobs = jobs;
+        this.chunks = chunks;
+    }
+
+    /**
+     * 全メンバーの可視ブロックと差分を計算（ワーカースレッドで呼ぶ）
+     * <p>
+     * 例外が発生した場合は全メンバーのエラーとして記録する。
+     */
+    void compute() {
+        try {
+            long start = System.nanoTime();
+            chunks.buildMissingIndexes();
+
+            // メンバーごとの走査区間 {z, minX, maxX, メンバー番号} を行・左端の順に並べる
+            List<int[]> intervals = new ArrayList<>();
+            for (int i = 0; i < jobs.size(); i++) {
+                ScanJob job = jobs.get(i);
+                int member = i;
+                job.beginScan();
+                job.forEachScanInterval((z, minX, maxX) -> intervals.add(new int[]{z, minX, maxX, member}));
+            }
+            intervals.sort(Comparator.<int[]>comparingInt(interval -> interval[0]).thenComparingInt(interval -> interval[1]));
+
+            long[] column = new long[chunks.getColumnHeight()];
+            int rowStart = 0;
+            while (rowStart < intervals.size()) {
+                // 同じ行の区間
+                int z = intervals.get(rowStart)[0];
+                int rowEnd = rowStart;
+                int maxX = Integer.MIN_VALUE;
+                while (rowEnd < intervals.size() && intervals.get(rowEnd)[0] == z) {
+                    maxX = Math.max(maxX, intervals.get(rowEnd)[2]);
+                    rowEnd++;
+                }
+
+                // 区間の和集合を左から掃引（区間は左端の順なので、始まっていない区間で打ち切れる）
+                for (int x = intervals.get(rowStart)[1]; x <= maxX; x++) {
+                    int count = -1;
+                    for (int i = rowStart; i < rowEnd; i++) {
+                        int[] interval = intervals.get(i);
+                        if (interval[1] > x) break;
+                        if (interval[2] < x) continue;
+
+                        if (count < 0) count = chunks.readColumn(x, z, column);
+                        jobs.get(interval[3]).acceptColumn(column, count);
+                    }
+                }
+                rowStart = rowEnd;
+            }
+
+            // 走査時間はメンバーで等分する
+            long scanTime = (System.nanoTime() - start) / jobs.size();
+            for (ScanJob job : jobs) {
+                job.finishScan(scanTime);
+            }
+        } catch (Throwable e) {
+            for (ScanJob job : jobs) {
+                job.error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+
+/**
+ * 可視化範囲のスキャン処理
+ * <p>
+ * チャンクスナップショットの取得はメインスレッドで行い、
+ * 可視ブロックの計算と差分計算はワーカースレッドで行う。
+ * 結果の反映は再びメインスレッドで行う。
+ * Folia では「メインスレッド」はプレイヤーを所有するリージョンのスレッドになる。
+ * <p>
+ * 差分スキャンでは前回の中心から新しい中心への移動で範囲に入った列・出た列
+ * （三日月形の領域）だけを処理する。
+ * <p>
+ * ブロックの走査は SourceIndex のビットセットで行い、索引のないチャンクだけ
+ * スナップショットを取ってワーカースレッドで索引を構築する。
+ * <p>
+ * 近くのプレイヤーのジョブは ChunkSet を共有し、ScanCluster でまとめて走査できる。
+ * <p>
+ * 列ごとの走査は索引の高さマップ（非空気ブロックの最小・最大のY）の間だけ行い、
+ * 縦の窓を設定した場合はさらにプレイヤーの高さの周りに絞る。
+ */
+final class ScanJob {
+    final PlayerState state;
+    final int generation;
+    final World world;
+    final int centerX;
+    final int centerZ;
+    final int range;
+    final int yMin;
+    final int yMax;
+
+    // 縦の窓（窓の半分の高さが0の場合は対象Y範囲全体）
+    final int window;
+    final int windowCenterY;
+    final int windowMinY;
+    final int windowMaxY;
+
+    // 全体スキャンか差分スキャンか
+    final boolean fullScan;
+    private final int previousCenterX;
+    private final int previousCenterZ;
+
+    // 可視化範囲の円
+    private final Stencil stencil;
+
+    // スキャン対象チャンク（prepare で設定、クラスタ内で共有）
+    private ChunkSet chunks;
+
+    // 読み込まれていないチャンクを含んでいたか（差分スキャンでは取りこぼしになる）
+    boolean skippedUnloadedChunk;
+
+    // ディスパッチ時点の可視化ブロック（ワーカーからは読み取りのみ）
+    private final LongHashSet baseBlocks;
+
+    // 計算結果（newBlocksは全体スキャン時のみ使用）
+    final LongHashSet newBlocks;
+    final LongArrayList blocksToAdd = new LongArrayList();
+    final LongArrayList blocksToRemove = new LongArrayList();
+    Throwable error;
+
+    // 計測値（スキャン・差分計算の時間と走査したブロック数）
+    long scanNanos;
+    long diffNanos;
+    long scannedBlocks;
+
+    private ScanJob(PlayerState state, World world, int centerX, int centerZ, int windowCenterY, Stencil stencil, Config config, LongHashSet buffer) {
+        this.state = state;
+        this.generation = state.generation;
+        this.world = world;
+        this.centerX = centerX;
+        this.centerZ = centerZ;
+        this.stencil = stencil;
+        this.range = stencil.getRange();
+        this.yMin = Math.max(config.getSourceYMin(), world.getMinHeight());
+        this.yMax = Math.min(config.getSourceYMax(), world.getMaxHeight() - 1);
+        this.windowCenterY = windowCenterY;
+        this.window = config.getVerticalWindow();
+        this.windowMinY = window > 0 ? Math.max(yMin, windowCenterY - window) : yMin;
+        this.windowMaxY = window > 0 ? Math.min(yMax, windowCenterY + window) : yMax;
+        this.fullScan = buffer != null;
+        this.previousCenterX = state.centerX;
+        this.previousCenterZ = state.centerZ;
+        this.baseBlocks = state.visibleBlocks;
+        this.newBlocks = buffer;
+    }
+
+    /**
+     * 全体スキャンのジョブを作成（チャンクは prepare で用意する）
+     *
+     * @param windowCenterY 縦の窓の中心（対象レイヤーのY、窓を設定しない場合は使わない）
+     * @param stencil       可視化範囲の円（予算・負荷で狭めた範囲）
+     */
+    static ScanJob createFull(PlayerState state, World world, int centerX, int centerZ, int windowCenterY, Stencil stencil, Config config, LongHashSet buffer) {
+        return new ScanJob(state, world, centerX, centerZ, windowCenterY, stencil, config, buffer);
+    }
+
+    /**
+     * 差分スキャンのジョブを作成（チャンクは prepare で用意する）
+     * <p>
+     * 前回の中心は state.centerX/centerZ を使う。縦の窓と円は前回と同じもの（state.windowCenterY、半径 state.centerRange）を渡す
+     */
+    static ScanJob createDelta(PlayerState state, World world, int centerX, int centerZ, Stencil stencil, Config config) {
+        return new ScanJob(state, world, centerX, centerZ, state.windowCenterY, stencil, config, null);
+    }
+
+    /**
+     * 予測した中心の周りで索引のないチャンクのスナップショットを取る（メインスレッドで呼ぶこと）
+     * <p>
+     * 構築中・構築済みのチャンクは飛ばす。返した集合の buildMissingIndexes をワーカースレッドで呼ぶと、
+     * 後のスキャンは構築済みの索引を使える。
+     *
+     * @return 構築が必要なチャンクがなければnull
+     */
+    static ChunkSet preparePrefetch(World world, int centerX, int centerZ, Config config, SourceIndex sourceIndex, boolean ownedChunksOnly) {
+        int yMin = Math.max(config.getSourceYMin(), world.getMinHeight());
+        int yMax = Math.min(config.getSourceYMax(), world.getMaxHeight() - 1);
+        int range = config.getStencil().getRange();
+        ChunkSet chunks = new ChunkSet(world, sourceIndex, yMin, yMax, ownedChunksOnly);
+        for (int chunkX = (centerX - range) >> 4; chunkX <= (centerX + range) >> 4; chunkX++) {
+            for (int chunkZ = (centerZ - range) >> 4; chunkZ <= (centerZ + range) >> 4; chunkZ++) {
+                if (sourceIndex.contains(BlockPos.chunkKey(chunkX, chunkZ))) continue;
+                chunks.prepare(chunkX, chunkZ);
+            }
+        }
+        return chunks.getMissingIndexCount() > 0 ? chunks : null;
+    }
+
+    /**
+     * このジョブと同じワールド・Y範囲のチャンク集合を作成
+     *
+     * @param ownedChunksOnly 現在のリージョンが所有していないチャンクを読み込まれていないものとして扱う（Folia）
+     */
+    ChunkSet newChunkSet(SourceIndex sourceIndex, boolean ownedChunksOnly) {
+        return new ChunkSet(world, sourceIndex, yMin, yMax, ownedChunksOnly);
+    }
+
+    /**
+     * スキャンに必要なチャンクを集合に追加（メインスレッドで呼ぶこと）
+     */
+    void prepare(ChunkSet chunks) {
+        this.chunks = chunks;
+        if (fullScan) {
+            int minChunkX = getMinChunkX();
+            int maxChunkX = getMaxChunkX();
+            int minChunkZ = getMinChunkZ();
+            int maxChunkZ = getMaxChunkZ();
+            for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+                for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                    if (!chunks.prepare(chunkX, chunkZ)) skippedUnloadedChunk = true;
+                }
+            }
+            return;
+        }
+
+        // 範囲に入る列が含まれるチャンクだけ用意する
+        LongHashSet chunkKeys = new LongHashSet();
+        forEachEnteringInterval((z, minX, maxX) -> {
+            for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+                chunkKeys.add(BlockPos.chunkKey(chunkX, z >> 4));
+            }
+        });
+        chunkKeys.forEach(chunkKey -> {
+            if (!chunks.prepare((int) (chunkKey >> 32), (int) chunkKey)) skippedUnloadedChunk = true;
+        });
+    }
+
+    // 可視化範囲の円を囲むチャンク座標
+    int getMinChunkX() {
+        return (centerX - range) >> 4;
+    }
+
+    int getMaxChunkX() {
+        return (centerX + range) >> 4;
+    }
+
+    int getMinChunkZ() {
+        return (centerZ - range) >> 4;
+    }
+
+    int getMaxChunkZ() {
+        return (centerZ + range) >> 4;
+    }
+
+    /**
+     * 可視ブロックと差分を計算（ワーカースレッドで呼ぶ）
+     */
+    void compute() {
+        long start = System.nanoTime();
+        chunks.buildMissingIndexes();
+        beginScan();
+        long[] column = new long[Math.max(0, windowMaxY - windowMinY + 1)];
+        forEachScanInterval((z, minX, maxX) -> {
+            for (int x = minX; x <= maxX; x++) {
+                scanColumn(x, z, column);
+            }
+        });
+        finishScan(System.nanoTime() - start);
+    }
+
+    /**
+     * 走査の開始（ワーカースレッド）
+     */
+    void beginScan() {
+        if (fullScan) newBlocks.clear();
+    }
+
+    /**
+     * 走査する区間を列挙（全体スキャンは円全体、差分スキャンは範囲に入った列）
+     */
+    void forEachScanInterval(IntervalConsumer action) {
+        if (fullScan) {
+            for (int dz = -range; dz <= range; dz++) {
+                int extent = stencil.getRowExtent(dz);
+                action.accept(centerZ + dz, centerX - extent, centerX + extent);
+            }
+        } else {
+            forEachEnteringInterval(action);
+        }
+    }
+
+    /**
+     * 走査で見つかった非空気ブロックを受け取る
+     */
+    void accept(long sourcePos) {
+        scannedBlocks++;
+        if (fullScan) {
+            newBlocks.add(sourcePos);
+        } else if (!baseBlocks.contains(sourcePos)) {
+            blocksToAdd.add(sourcePos);
+        }
+    }
+
+    /**
+     * 1列分の非空気ブロックを受け取る（縦の窓の外は読み飛ばす）
+     * <p>
+     * ScanCluster はメンバー間で対象Y範囲全体の列を共有するため、窓はメンバーごとにここで適用する
+     */
+    void acceptColumn(long[] column, int count) {
+        boolean windowed = windowMinY > yMin || windowMaxY < yMax;
+        for (int i = 0; i < count; i++) {
+            long sourcePos = column[i];
+            if (windowed) {
+                int y = BlockPos.getY(sourcePos);
+                if (y < windowMinY || y > windowMaxY) continue;
+            }
+            accept(sourcePos);
+        }
+    }
+
+    /**
+     * 走査を終えて差分を計算（ワーカースレッド）
+     *
+     * @param scanTime このジョブの走査にかかった時間
+     */
+    void finishScan(long scanTime) {
+        scanNanos = scanTime;
+        long start = System.nanoTime();
+        if (fullScan) {
+            // 新たに範囲内に入ったブロック
+            newBlocks.forEachNotIn(baseBlocks, blocksToAdd::add);
+
+            // 範囲外に出たブロック
+            baseBlocks.forEachNotIn(newBlocks, blocksToRemove::add);
+        } else {
+            // 範囲から出た列の可視ブロックを削除（ワールドへのアクセスは不要）
+            // 差分スキャンでは縦の窓は前回と同じため、可視ブロックは窓の中にしかない
+            forEachLeavingInterval((z, minX, maxX) -> {
+                for (int x = minX; x <= maxX; x++) {
+                    for (int y = windowMinY; y <= windowMaxY; y++) {
+                        long sourcePos = BlockPos.pack(x, y, z);
+                        if (baseBlocks.contains(sourcePos)) {
+                            blocksToRemove.add(sourcePos);
+                        }
+                    }
+                }
+            });
+        }
+        diffNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * 1列分の非空気ブロックを索引から列挙（高さマップと縦の窓の外は読み飛ばす）
+     *
+     * @param column 作業用の配列（縦の窓の高さ以上の長さ）
+     */
+    private void scanColumn(int x, int z, long[] column) {
+        ChunkIndex index = chunks.get(BlockPos.chunkKey(x >> 4, z >> 4));
+        if (index == null) return;
+
+        int count = index.readColumn(x, z, windowMinY, windowMaxY, column);
+        for (int i = 0; i < count; i++) {
+            accept(column[i]);
+        }
+    }
+
+    /**
+     * 行ごとの区間を受け取るコールバック
+     */
+    @FunctionalInterface
+    interface IntervalConsumer {
+        void accept(int z, int minX, int maxX);
+    }
+
+    /**
+     * 新しい円に含まれ、前回の円に含まれない区間を列挙
+     */
+    private void forEachEnteringInterval(IntervalConsumer action) {
+        forEachIntervalDifference(centerX, centerZ, previousCenterX, previousCenterZ, action);
+    }
+
+    /**
+     * 前回の円に含まれ、新しい円に含まれない区間を列挙
+     */
+    private void forEachLeavingInterval(IntervalConsumer action) {
+        forEachIntervalDifference(previousCenterX, previousCenterZ, centerX, centerZ, action);
+    }
+
+    /**
+     * 円A（中心ax, az）から円B（中心bx, bz）を引いた領域を行ごとの区間で列挙
+     */
+    private void forEachIntervalDifference(int ax, int az, int bx, int bz, IntervalConsumer action) {
+        for (int z = az - range; z <= az + range; z++) {
+            int extentA = stencil.getRowExtent(z - az);
+            int minA = ax - extentA;
+            int maxA = ax + extentA;
+
+            int dzB = z - bz;
+            if (dzB < -range || dzB > range) {
+                action.accept(z, minA, maxA);
+                continue;
+            }
+
+            int extentB = stencil.getRowExtent(dzB);
+            int minB = bx - extentB;
+            int maxB = bx + extentB;
+
+            // 区間Bの左側
+            int leftMax = Math.min(maxA, minB - 1);
+            if (minA <= leftMax) action.accept(z, minA, leftMax);
+
+            // 区間Bの右側
+            int rightMin = Math.max(minA, maxB + 1);
+            if (rightMin <= maxA) action.accept(z, rightMin, maxA);
+        }
+    }
+
+    /**
+     * スナップショットを取得したチャンクがすべてまだ読み込まれているか（メインスレッドで呼ぶ）
+     */
+    boolean isChunksStillLoaded() {
+        return chunks.isStillLoaded();
+    }
+
+    /**
+     * スキャン対象チャンクの索引の集合（複数のジョブで共有できる）
+     * <p>
+     * 準備はメインスレッド、索引の構築と読み取りはワーカースレッドで行う。
+     */
+    static final class ChunkSet {
+        private final World world;
+        private final SourceIndex sourceIndex;
+        private final int yMin;
+        private final int yMax;
+        private final int worldMinSectionY;
+        private final boolean ownedChunksOnly;
+
+        // 読み込まれているチャンクの索引
+        private final LongObjectHashMap<ChunkIndex> chunkIndexes = new LongObjectHashMap<>();
+
+        // 索引の構築が必要なチャンクのスナップショットと構築トークン
+        private final LongObjectHashMap<ChunkSnapshot> snapshots = new LongObjectHashMap<>();
+        private final LongObjectHashMap<ChunkIndex> buildTokens = new LongObjectHashMap<>();
+
+        ChunkSet(World world, SourceIndex sourceIndex, int yMin, int yMax, boolean ownedChunksOnly) {
+            this.world = world;
+            this.sourceIndex = sourceIndex;
+            this.yMin = yMin;
+            this.yMax = yMax;
+            this.worldMinSectionY = world.getMinHeight() >> 4;
+            this.ownedChunksOnly = ownedChunksOnly;
+        }
+
+        /**
+         * チャンクを追加（メインスレッド）
+         *
+         * @return 読み込まれていないためスキップした場合はfalse
+         */
+        boolean prepare(int chunkX, int chunkZ) {
+            // 対象Y範囲がワールドの高さの外
+            if (yMin > yMax) return true;
+
+            long chunkKey = BlockPos.chunkKey(chunkX, chunkZ);
+            if (chunkIndexes.containsKey(chunkKey) || snapshots.containsKey(chunkKey)) return true;
+
+            // 読み込まれていないチャンクはスキップ（同期ロードを避ける）
+            if (!world.isChunkLoaded(chunkX, chunkZ)) return false;
+
+            // 別のリージョンのチャンクには触れない（リージョンの境界をまたぐ範囲は、チャンクが読み込まれたときと同様に後で補う）
+            if (ownedChunksOnly && !Bukkit.isOwnedByCurrentRegion(world, chunkX, chunkZ)) return false;
+
+            ChunkIndex index = sourceIndex.get(chunkKey, yMin, yMax);
+            if (index != null) {
+                chunkIndexes.put(chunkKey, index);
+                return true;
+            }
+
+            // 索引がない場合はスナップショットを取り、ワーカーで構築する
+            ChunkSnapshot snapshot = world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(false, false, false);
+            snapshots.put(chunkKey, snapshot);
+            buildTokens.put(chunkKey, sourceIndex.beginBuild(chunkKey));
+            return true;
+        }
+
+        /**
+         * スナップショットから索引を構築（ワーカースレッド、走査の前に1回呼ぶ）
+         */
+        void buildMissingIndexes() {
+            snapshots.forEach((chunkKey, snapshot) -> {
+                ChunkIndex index = ChunkIndex.build(snapshot, yMin, yMax, worldMinSectionY);
+                sourceIndex.completeBuild(chunkKey, buildTokens.get(chunkKey), index);
+                chunkIndexes.put(chunkKey, index);
+            });
+            snapshots.clear();
+            buildTokens.clear();
+        }
+
+        ChunkIndex get(long chunkKey) {
+            return chunkIndexes.get(chunkKey);
+        }
+
+        /**
+         * 索引の構築が必要なチャンクの数
+         */
+        int getMissingIndexCount() {
+            return snapshots.size();
+        }
+
+        /**
+         * 1列分の非空気ブロックを書き出す（高さマップの外は読み飛ばす）
+         *
+         * @param out 書き出し先（Y範囲の高さ以上の長さ）
+         * @return 書き出した数
+         */
+        int readColumn(int x, int z, long[] out) {
+            ChunkIndex index = chunkIndexes.get(BlockPos.chunkKey(x >> 4, z >> 4));
+            if (index == null) return 0;
+            return index.readColumn(x, z, yMin, yMax, out);
+        }
+
+        /**
+         * 列の最大ブロック数（readColumn の書き出し先の長さ）
+         */
+        int getColumnHeight() {
+            return Math.max(0, yMax - yMin + 1);
+        }
+
+        /**
+         * 索引を使うチャンクがすべてまだ読み込まれているか（メインスレッドで呼ぶ）
+         */
+        boolean isStillLoaded() {
+            boolean[] loaded = {true};
+            chunkIndexes.forEach((chunkKey, index) -> {
+                if (loaded[0] && !world.isChunkLoaded((int) (chunkKey >> 32), (int) chunkKey)) {
+                    loaded[0] = false;
+                }
+            });
+            return loaded[0];
+        }
+    }
+}
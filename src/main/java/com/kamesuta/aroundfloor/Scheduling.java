@@ -0,0 +1,77 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+
+/**
+ * タスクの実行先
+ * <p>
+ * Paper ではすべてメインスレッドで実行する（BukkitScheduling）。
+ * Folia ではワールドがリージョンごとのスレッドに分かれているため、チャンク・エンティティを所有するリージョンで実行し、
+ * 全体の定期処理はグローバルリージョンで実行する（FoliaScheduling）。
+ */
+interface Scheduling {
+    /**
+     * 実行中のサーバーに合った実行先を作成
+     */
+    static Scheduling create(AroundFloorPlugin plugin) {
+        return isFolia() ? new FoliaScheduling(plugin) : new BukkitScheduling(plugin);
+    }
+
+    /**
+     * Folia（リージョンごとのスレッド）で動作しているか
+     */
+    static boolean isFolia() {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 実行中の定期タスク
+     */
+    interface Task {
+        void cancel();
+    }
+
+    /**
+     * 処理が複数のスレッドに分かれるか（Folia）
+     * <p>
+     * true の場合、チャンク・エンティティへのアクセスは runAtChunk / runForEntity の中で行う必要があり、
+     * 呼び出し元には戻らずに後で実行される
+     */
+    boolean isRegionized();
+
+    /**
+     * 全体の定期タスクを開始（Paper: メインスレッド、Folia: グローバルリージョン）
+     */
+    Task runGlobalTimer(Runnable task, long delay, long period);
+
+    /**
+     * 全体のタスクを次tickに実行
+     */
+    void runGlobal(Runnable task);
+
+    /**
+     * 全体のタスクを指定したtick後に実行
+     */
+    void runGlobalLater(Runnable task, long delay);
+
+    /**
+     * チャンクを所有するスレッドで実行（既にそのスレッドであればその場で実行）
+     */
+    void runAtChunk(World world, int chunkX, int chunkZ, Runnable task);
+
+    /**
+     * エンティティを所有するスレッドで実行（既にそのスレッドであればその場で実行、エンティティが消えた場合は実行しない）
+     */
+    void runForEntity(Entity entity, Runnable task);
+
+    /**
+     * 非同期に実行
+     */
+    void runAsync(Runnable task);
+}
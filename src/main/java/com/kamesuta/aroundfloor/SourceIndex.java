@@ -0,0 +1,62 @@
+package com.kamesuta.aroundfloor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 1ワールド分の対象レイヤーの索引（チャンクごとに遅延構築するキャッシュ）
+ * <p>
+ * ブロックの変更・チャンクのアンロードで該当チャンクを破棄し、次のスキャンで再構築する。
+ * 構築はワーカースレッドで行うため、構築開始時にトークンを置き、
+ * 構築中に破棄された場合は結果を登録しない。
+ */
+final class SourceIndex {
+    private final Map<Long, ChunkIndex> chunks = new ConcurrentHashMap<>();
+
+    /**
+     * 構築済みの索引を取得（未構築・対象Y範囲が異なる場合はnull）
+     */
+    ChunkIndex get(long chunkKey, int yMin, int yMax) {
+        ChunkIndex index = chunks.get(chunkKey);
+        return index != null && index.matches(yMin, yMax) ? index : null;
+    }
+
+    /**
+     * 索引を保持しているか（構築中を含む）
+     */
+    boolean contains(long chunkKey) {
+        return chunks.containsKey(chunkKey);
+    }
+
+    /**
+     * 構築を開始（メインスレッドでスナップショットを取るときに呼ぶ）
+     *
+     * @return 構築完了時に渡すトークン
+     */
+    ChunkIndex beginBuild(long chunkKey) {
+        ChunkIndex token = ChunkIndex.pending();
+        chunks.put(chunkKey, token);
+        return token;
+    }
+
+    /**
+     * 構築結果を登録（構築中に破棄されていた場合は登録しない）
+     */
+    void completeBuild(long chunkKey, ChunkIndex token, ChunkIndex built) {
+        chunks.replace(chunkKey, token, built);
+    }
+
+    /**
+     * チャンクの索引を破棄
+     */
+    void invalidate(long chunkKey) {
+        chunks.remove(chunkKey);
+    }
+
+    /**
+     * 索引を保持しているチャンク数（構築中を含む）
+     */
+    int size() {
+        return chunks.size();
+    }
+}
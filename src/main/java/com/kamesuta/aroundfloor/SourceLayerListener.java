@@ -0,0 +1,113 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+import java.util.List;
+
+/**
+ * 対象レイヤーのブロック変更を監視するリスナー
+ */
+public class SourceLayerListener implements Listener {
+    private final BlockManager blockManager;
+
+    public SourceLayerListener(BlockManager blockManager) {
+        this.blockManager = blockManager;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        onBlockChanged(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        onBlockChanged(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        onBlockChanged(event.getBlock());
+        onBlocksChanged(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        onBlocksChanged(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        onPistonMoved(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        onPistonMoved(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        blockManager.onChunkUnload(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        blockManager.onChunkLoad(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+    }
+
+    private void onPistonMoved(Block piston, List<Block> blocks, BlockFace direction) {
+        // ピストン本体（ヘッド）と、動くブロックの移動元・移動先
+        LongArrayList positions = new LongArrayList(2 + blocks.size() * 2);
+        positions.add(BlockPos.pack(piston.getX(), piston.getY(), piston.getZ()));
+        positions.add(BlockPos.pack(piston.getX() + direction.getModX(), piston.getY() + direction.getModY(), piston.getZ() + direction.getModZ()));
+        for (Block block : blocks) {
+            positions.add(BlockPos.pack(block.getX(), block.getY(), block.getZ()));
+            positions.add(BlockPos.pack(block.getX() + direction.getModX(), block.getY() + direction.getModY(), block.getZ() + direction.getModZ()));
+        }
+        blockManager.onSourceBlocksMoved(piston.getWorld(), positions);
+    }
+
+    private void onBlocksChanged(List<Block> blocks) {
+        for (Block block : blocks) {
+            onBlockChanged(block);
+        }
+    }
+
+    private void onBlockChanged(Block block) {
+        blockManager.onSourceBlockChanged(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+}
@@ -0,0 +1,48 @@
+package com.kamesuta.aroundfloor;
+
+/**
+ * 可視化範囲の円（dx² + dz² <= range²）を事前計算した不変オブジェクト
+ * <p>
+ * 行ごとの半幅を保持する（円に含まれる列は行ごとに -半幅～半幅 の範囲で辿る）。
+ * 可視化範囲が変わったときだけ作り直し、スキャンのループからは直接参照する。
+ */
+final class Stencil {
+    private final int range;
+    private final int rangeSquared;
+
+    // 円の各行（dz = -range～range）の半幅
+    private final int[] rowExtents;
+
+    Stencil(int range) {
+        this.range = range;
+        this.rangeSquared = range * range;
+        this.rowExtents = new int[range * 2 + 1];
+
+        for (int dz = 0; dz <= range; dz++) {
+            int remaining = rangeSquared - dz * dz;
+            int extent = (int) Math.sqrt(remaining);
+            while (extent * extent > remaining) extent--;
+            while ((extent + 1) * (extent + 1) <= remaining) extent++;
+            rowExtents[range + dz] = extent;
+            rowExtents[range - dz] = extent;
+        }
+    }
+
+    int getRange() {
+        return range;
+    }
+
+    /**
+     * 行 dz（-range～range）の半幅（dx² + dz² <= range² を満たす最大のdx）
+     */
+    int getRowExtent(int dz) {
+        return rowExtents[dz + range];
+    }
+
+    /**
+     * 相対座標が円に含まれるか
+     */
+    boolean contains(int dx, int dz) {
+        return dx * dx + dz * dz <= rangeSquared;
+    }
+}
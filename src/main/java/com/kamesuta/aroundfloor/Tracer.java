@@ -0,0 +1,202 @@
+package com.kamesuta.aroundfloor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 割り当てなしで記録できるトレース（固定長のリングバッファ）
+ * <p>
+ * 1件は種類・座標（BlockPosでパック済み）・プレイヤーのスロット・時刻・付加値のプリミティブで、
+ * 古いものから上書きされる。種類ごとにN件に1件だけ記録するサンプリングができる。
+ * 記録は Paper ではメインスレッド、Folia では複数のリージョンのスレッドから行う。整形は snapshot() の結果を別スレッドで行う。
+ * Folia では同時に記録したイベントが欠けることがある（診断用のため同期はしない）。
+ * バッファの配列とマスクは1つの不変なオブジェクトにまとめて差し替え、記録ごとに1回だけ読む
+ * （設定の再読み込みと記録が重なっても、大きさの異なる配列とマスクを組み合わせない）。
+ */
+final class Tracer {
+    /**
+     * イベントの種類
+     */
+    enum Type {
+        // スキャン結果の反映（付加値: 追加数 << 32 | 削除数）
+        SCAN_FULL("scan", 1),
+        SCAN_DELTA("scan", 1),
+        // 古いスキャン結果の破棄
+        SCAN_DISCARDED("scan", 1),
+        // 可視化ブロックの追加・削除（座標は対象ブロック）
+        SHOW("show", 64),
+        HIDE("hide", 64),
+        // 表示ブロックの書き込み（座標は表示ブロック）
+        PLACE("write", 64),
+        REMOVE("write", 64),
+        // 対象ブロックの変更
+        SOURCE_CHANGE("source-change", 1),
+        // プレイヤーの更新（付加値: 1なら全体再スキャン）
+        UPDATE("update", 1);
+
+        // サンプリング設定のキー
+        final String configKey;
+        // 既定のサンプリング間隔（N件に1件、0で記録しない）
+        final int defaultRate;
+
+        Type(String configKey, int defaultRate) {
+            this.configKey = configKey;
+            this.defaultRate = defaultRate;
+        }
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    // プレイヤーに紐づかないイベントのスロット
+    static final int NO_SLOT = -1;
+
+    /**
+     * リングバッファ（配列とマスクは不変、書き込み位置だけが進む）
+     */
+    private static final class Ring {
+        final byte[] types;
+        final long[] positions;
+        final int[] slots;
+        final long[] times;
+        final long[] values;
+        // 大きさ - 1（大きさが0の場合は-1で記録しない）
+        final int mask;
+        long head;
+
+        Ring(int capacity) {
+            types = new byte[capacity];
+            positions = new long[capacity];
+            slots = new int[capacity];
+            times = new long[capacity];
+            values = new long[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Ring ring = new Ring(0);
+
+    private final int[] sampleRates = new int[TYPES.length];
+    private final int[] sampleCounters = new int[TYPES.length];
+
+    /**
+     * 設定を反映（バッファの大きさが変わる場合は記録を破棄する）
+     */
+    void configure(Config config) {
+        int capacity = config.getTraceBufferSize();
+        if (capacity > 0) {
+            capacity = Integer.highestOneBit(capacity - 1) << 1;
+            capacity = Math.max(capacity, 1);
+        }
+        if (capacity != ring.types.length) {
+            ring = new Ring(capacity);
+        }
+        for (Type type : TYPES) {
+            sampleRates[type.ordinal()] = config.getTraceSampleRate(type);
+        }
+        Arrays.fill(sampleCounters, 0);
+    }
+
+    /**
+     * イベントを記録（サンプリング対象外なら何もしない）
+     */
+    void record(Type type, long pos, int slot, long value) {
+        int ordinal = type.ordinal();
+        int rate = sampleRates[ordinal];
+        Ring ring = this.ring;
+        if (rate == 0 || ring.mask < 0) return;
+        if (rate > 1) {
+            if (++sampleCounters[ordinal] < rate) return;
+            sampleCounters[ordinal] = 0;
+        }
+
+        int index = (int) (ring.head++ & ring.mask);
+        ring.types[index] = (byte) ordinal;
+        ring.positions[index] = pos;
+        ring.slots[index] = slot;
+        ring.times[index] = System.nanoTime();
+        ring.values[index] = value;
+    }
+
+    /**
+     * 現在の記録を古い順に複製（メインスレッドで呼ぶ）
+     */
+    Snapshot snapshot() {
+        Ring ring = this.ring;
+        long head = ring.head;
+        int count = (int) Math.min(head, ring.types.length);
+        Snapshot snapshot = new Snapshot(count);
+        long start = head - count;
+        for (int i = 0; i < count; i++) {
+            int index = (int) ((start + i) & ring.mask);
+            snapshot.types[i] = TYPES[ring.types[index]];
+            snapshot.positions[i] = ring.positions[index];
+            snapshot.slots[i] = ring.slots[index];
+            snapshot.times[i] = ring.times[index];
+            snapshot.values[i] = ring.values[index];
+        }
+        snapshot.dropped = head - count;
+        return snapshot;
+    }
+
+    /**
+     * 記録をすべて破棄
+     */
+    void clear() {
+        ring.head = 0;
+    }
+
+    /**
+     * 記録の複製（別スレッドで整形する）
+     */
+    static final class Snapshot {
+        final Type[] types;
+        final long[] positions;
+        final int[] slots;
+        final long[] times;
+        final long[] values;
+        // 上書きされた件数
+        long dropped;
+
+        Snapshot(int count) {
+            types = new Type[count];
+            positions = new long[count];
+            slots = new int[count];
+            times = new long[count];
+            values = new long[count];
+        }
+
+        int size() {
+            return types.length;
+        }
+
+        /**
+         * テキストに整形してファイルに書き出す（時刻は最初の記録からの経過ミリ秒）
+         *
+         * @param slotNames スロット番号とプレイヤー名の対応
+         */
+        void writeTo(Path file, Map<Integer, String> slotNames) throws IOException {
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                writer.write("# events: " + size() + ", overwritten: " + dropped);
+                writer.newLine();
+                long origin = size() > 0 ? times[0] : 0;
+                for (int i = 0; i < size(); i++) {
+                    Type type = types[i];
+                    writer.write(String.format("%12.3fms %-14s %-16s %s", (times[i] - origin) / 1_000_000.0, type,
+                        slots[i] == NO_SLOT ? "-" : slotNames.getOrDefault(slots[i], "slot" + slots[i]),
+                        BlockPos.toString(positions[i])));
+                    if (type == Type.SCAN_FULL || type == Type.SCAN_DELTA) {
+                        writer.write(" added=" + (values[i] >>> 32) + " removed=" + (values[i] & 0xFFFFFFFFL));
+                    } else if (type == Type.UPDATE && values[i] != 0) {
+                        writer.write(" rescan");
+                    }
+                    writer.newLine();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * プレイヤーの可視化範囲の更新をtickごとに予算内で実行する
+ * <p>
+ * ブロックの境界をまたいだプレイヤーを更新待ちとして記録し、移動速度に応じた間隔で更新する
+ * （速く移動しているプレイヤーほど短い間隔）。1tickに更新するプレイヤー数には上限があり、
+ * 溢れたプレイヤーは次tickに持ち越す。
+ * <p>
+ * 安全策の全体再スキャンはプレイヤーごとにずらしたtickで行い、負荷が1tickに集中しないようにする。
+ * <p>
+ * 更新するプレイヤーの選択はメインスレッド（Folia ではグローバルリージョン）で行い、
+ * 位置の読み取りと更新そのものはプレイヤーを所有するスレッドで行う（Paper ではその場で実行）。
+ * <p>
+ * プレイヤーごとの更新状態は ParticipantRegistry の記録に持ち、有効なプレイヤーだけを更新する。
+ */
+final class UpdateScheduler {
+    // 速度（ブロック/tick）が更新間隔を縮める度合い
+    private static final double SPEED_WEIGHT = 4.0;
+
+    // これより速い移動はテレポートとみなし、先読みの速度に含めない（ブロック/tick、エリトラ程度より上）
+    private static final double MAX_MOVE_SPEED = 4.0;
+
+    private final AroundFloorPlugin plugin;
+    private final BlockManager blockManager;
+    private final Config config;
+    private final Scheduling scheduling;
+    private final ParticipantRegistry participants;
+    private final List<Participant> candidates = new ArrayList<>();
+    private long currentTick;
+    private Scheduling.Task task;
+
+    private static final Comparator<Participant> PRIORITY = Comparator
+        .comparing((Participant entry) -> !entry.urgent)
+        .thenComparing(entry -> !entry.dirty)
+        .thenComparing(entry -> -entry.score);
+
+    UpdateScheduler(AroundFloorPlugin plugin, BlockManager blockManager, Config config, ParticipantRegistry participants) {
+        this.plugin = plugin;
+        this.blockManager = blockManager;
+        this.config = config;
+        this.scheduling = plugin.getScheduling();
+        this.participants = participants;
+    }
+
+    /**
+     * 毎tickの実行を開始
+     */
+    void start() {
+        task = plugin.getScheduling().runGlobalTimer(this::tick, 1L, 1L);
+    }
+
+    /**
+     * 更新状態を初期化（可視化を開始したとき、次tickで更新する、プレイヤーのスレッドで呼ぶ）
+     */
+    void reset(Participant entry) {
+        Location location = entry.player.getLocation();
+        entry.lastUpdateTick = currentTick;
+        entry.lastX = location.getX();
+        entry.lastZ = location.getZ();
+        entry.speed = 0;
+        entry.dirty = false;
+        entry.rescanDue = false;
+        entry.urgent = true;
+    }
+
+    /**
+     * ブロックの境界をまたいだ
+     */
+    void markDirty(Participant entry) {
+        entry.dirty = true;
+    }
+
+    /**
+     * 次tickで間隔を待たずに更新する
+     */
+    void markUrgent(Participant entry) {
+        entry.urgent = true;
+    }
+
+    /**
+     * 全プレイヤーの全体再スキャンを予約（設定の再読み込み時、1tickあたりの更新数の上限内で順に行う）
+     */
+    void rescanAll() {
+        scheduling.runGlobal(() -> {
+            for (Participant entry : participants.getParticipants()) {
+                if (entry != null) entry.rescanDue = true;
+            }
+        });
+    }
+
+    private void tick() {
+        currentTick++;
+
+        int rescanInterval = config.getUpdateInterval();
+        int phase = (int) (currentTick % rescanInterval);
+        candidates.clear();
+        for (Participant entry : participants.getParticipants()) {
+            if (entry == null || !entry.isEnabled()) continue;
+
+            // 全体再スキャンの位相はスロット番号でずらす
+            if (entry.slot % rescanInterval == phase) {
+                entry.rescanDue = true;
+            }
+
+            long elapsed = currentTick - entry.lastUpdateTick;
+            if (entry.urgent || entry.rescanDue || (entry.dirty && elapsed >= intervalOf(entry))) {
+                // 待ち時間が長く、速いプレイヤーほど優先
+                entry.score = elapsed * (1.0 + SPEED_WEIGHT * entry.speed);
+                candidates.add(entry);
+            }
+        }
+        if (candidates.isEmpty()) return;
+
+        int budget = config.getPlayerUpdateBudget();
+        if (candidates.size() > budget) {
+            candidates.sort(PRIORITY);
+        }
+
+        // 同じtickのスキャンは近いプレイヤー同士でまとめて実行する
+        blockManager.beginBatch();
+        try {
+            for (int i = 0; i < candidates.size() && i < budget; i++) {
+                update(candidates.get(i));
+            }
+        } finally {
+            blockManager.endBatch();
+        }
+    }
+
+    /**
+     * 更新待ちのプレイヤーを次に更新するまでの間隔（tick）
+     */
+    private int intervalOf(Participant entry) {
+        int interval = (int) Math.ceil(config.getMoveUpdateInterval() / (1.0 + SPEED_WEIGHT * entry.speed));
+        return Math.max(1, interval);
+    }
+
+    private void update(Participant entry) {
+        long elapsed = Math.max(1, currentTick - entry.lastUpdateTick);
+        entry.lastUpdateTick = currentTick;
+
+        // 印は送り出す前に消す（この後に立った印は次tickで見え、それまでの移動は更新の中で位置を読むときに含まれる）
+        boolean rescan = entry.rescanDue;
+        entry.dirty = false;
+        entry.urgent = false;
+        entry.rescanDue = false;
+
+        scheduling.runForEntity(entry.player, () -> updatePlayer(entry, elapsed, rescan));
+    }
+
+    /**
+     * プレイヤーの可視化範囲を更新（プレイヤーのスレッド）
+     */
+    private void updatePlayer(Participant entry, long elapsed, boolean rescan) {
+        // 選択した後に可視化の対象から外れた（権限がなくなったなど、同じスレッドで先に処理されている）
+        PlayerState state = entry.state;
+        if (state == null) return;
+
+        Player player = entry.player;
+        Location location = player.getLocation();
+
+        // 移動速度を更新（前回との平均）
+        double dx = location.getX() - entry.lastX;
+        double dz = location.getZ() - entry.lastZ;
+        entry.speed = (entry.speed + Math.sqrt(dx * dx + dz * dz) / elapsed) * 0.5;
+        entry.lastX = location.getX();
+        entry.lastZ = location.getZ();
+
+        // 移動方向の速度を更新（前回との平均、テレポートなどの不連続な移動では止まったものとする）
+        double velocityX = dx / elapsed;
+        double velocityZ = dz / elapsed;
+        if (velocityX * velocityX + velocityZ * velocityZ > MAX_MOVE_SPEED * MAX_MOVE_SPEED) {
+            state.velocityX = 0;
+            state.velocityZ = 0;
+        } else {
+            state.velocityX = (state.velocityX + velocityX) * 0.5;
+            state.velocityZ = (state.velocityZ + velocityZ) * 0.5;
+        }
+
+        try {
+            if (rescan) {
+                blockManager.rescan(entry);
+            } else {
+                blockManager.updateVisibleBlocks(entry);
+            }
+        } catch (Exception e) {
+            plugin.getLogger().warning("プレイヤー " + player.getName() + " のブロック更新中にエラーが発生しました: " + e.getMessage());
+            if (config.isDebug()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 更新対象のプレイヤー数
+     */
+    int size() {
+        int count = 0;
+        for (Participant entry : participants.getParticipants()) {
+            if (entry != null && entry.isEnabled()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * 更新待ちのプレイヤー数
+     */
+    int getPendingCount() {
+        int count = 0;
+        for (Participant entry : participants.getParticipants()) {
+            if (entry != null && entry.isEnabled() && (entry.dirty || entry.urgent)) count++;
+        }
+        return count;
+    }
+
+    void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+}
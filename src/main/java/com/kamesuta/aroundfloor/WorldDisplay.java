@@ -0,0 +1,657 @@
+package com.kamesuta.aroundfloor;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ワールドのブロックを書き換えて表示する（全プレイヤー共通の表示）
+ * <p>
+ * 表示位置の参照カウントはチャンクごとのバケットで管理し、チャンクのアンロード時に
+ * バケット単位で後片付け（restore）または保留（suspend）する。
+ * アンロード中のチャンクへの書き込みは行わず、再読み込み時にまとめて照合する。
+ * <p>
+ * 実際に書き込んだ配置・削除は DisplayJournal に記録し、異常終了後の有効化時に残った表示ブロックを取り除く。
+ * <p>
+ * 表示ブロックを最初に置く前の内容は OriginalStore に保持し、削除時は空気ではなく元のブロックに戻す。
+ * <p>
+ * 1ワールドの表示状態は 16×16 チャンクの区画ごとに Shard に分け、Shard ごとのロックで保護する。
+ * 区画は Folia のリージョンを構成する単位と同じで、Shard は区画ごとに1つずつ（表示ブロックを置いたときに作る）。
+ * 別々のリージョンのプレイヤー・書き込みが同じロックを取り合うことはない。
+ * 1つのリージョンが複数の区画をまとめている場合でも、その区画のロックはそのリージョンのスレッドしか取らない。
+ */
+final class WorldDisplay implements DisplayBackend {
+    // 再読み込み時の照合の優先度（プレイヤーの近くの書き込みより後に行う）
+    private static final int RECONCILE_PRIORITY = Integer.MAX_VALUE;
+
+    // ジャーナルのファイル名（ワールドのUUID + 拡張子）
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    // 区画の大きさ（チャンク数の2の対数、Folia のリージョンの単位と同じ16チャンク）
+    private static final int SHARD_CHUNK_SHIFT = 4;
+
+    private final AroundFloorPlugin plugin;
+    private final Config config;
+    private final WriteScheduler writeScheduler;
+    private final Scheduling scheduling;
+    private final Tracer tracer;
+
+    // ワールドごとの表示状態
+    private final Map<UUID, WorldLayer> layers;
+
+    // ジャーナルとパレットの保存先
+    private final File journalDirectory;
+
+    // 元のブロックの通し番号（全ワールド共通、ジャーナルと同じ場所に保存）
+    private final BlockPalette palette;
+
+    /**
+     * @param journalDirectory ジャーナルとパレットの保存先（プラグインでは データフォルダ/journal）
+     */
+    WorldDisplay(AroundFloorPlugin plugin, Config config, WriteScheduler writeScheduler, Tracer tracer, File journalDirectory) {
+        this.plugin = plugin;
+        this.config = config;
+        this.writeScheduler = writeScheduler;
+        this.scheduling = plugin.getScheduling();
+        this.tracer = tracer;
+        this.journalDirectory = journalDirectory;
+        this.layers = new ConcurrentHashMap<>();
+        this.palette = BlockPalette.load(new File(journalDirectory, "palette.txt").toPath(), plugin.getServer(), plugin.getLogger());
+    }
+
+    /**
+     * 1ワールド分の表示状態
+     */
+    private final class WorldLayer {
+        final World world;
+
+        // 区画ごとの表示状態（区画の座標を BlockPos.chunkKey でパックしたキー）
+        final Map<Long, Shard> shards = new ConcurrentHashMap<>();
+
+        // 直前に引いた Shard（同じ区画が続くため、キーの箱詰めとマップの検索を省く）
+        private volatile Shard lastShard;
+
+        // 配置・削除の記録（開けなかった場合はnull）
+        final DisplayJournal journal;
+
+        WorldLayer(World world) {
+            this.world = world;
+            // 詰め直しは非同期に行う（無効化中は予約できないため、cleanup でその場で詰め直す）
+            this.journal = DisplayJournal.open(getJournalFile(world.getUID()), plugin.getLogger(), task -> {
+                if (plugin.isEnabled()) scheduling.runAsync(task);
+            });
+        }
+
+        /**
+         * 表示位置の区画の Shard（なければ作成して書き込みのスケジューラーに登録）
+         */
+        Shard shardOf(long displayPos) {
+            long areaKey = areaKeyOf(BlockPos.getX(displayPos) >> 4, BlockPos.getZ(displayPos) >> 4);
+            Shard last = lastShard;
+            if (last != null && last.areaKey == areaKey) return last;
+
+            Shard shard = shards.computeIfAbsent(areaKey, k -> {
+                Shard created = new Shard(this, k);
+                writeScheduler.register(created.queue);
+                return created;
+            });
+            lastShard = shard;
+            return shard;
+        }
+
+        /**
+         * チャンクの区画の Shard（なければnull）
+         */
+        Shard findShardOfChunk(int chunkX, int chunkZ) {
+            long areaKey = areaKeyOf(chunkX, chunkZ);
+            Shard last = lastShard;
+            if (last != null && last.areaKey == areaKey) return last;
+            return shards.get(areaKey);
+        }
+
+        private long areaKeyOf(int chunkX, int chunkZ) {
+            return BlockPos.chunkKey(chunkX >> SHARD_CHUNK_SHIFT, chunkZ >> SHARD_CHUNK_SHIFT);
+        }
+
+        void recordPlace(long displayPos, int originalId) {
+            if (journal != null) journal.recordPlace(displayPos, originalId);
+        }
+
+        void recordRemove(long displayPos) {
+            if (journal != null) journal.recordRemove(displayPos);
+        }
+
+        int size() {
+            int count = 0;
+            for (Shard shard : shards.values()) {
+                shard.lock.lock();
+                try {
+                    count += shard.size();
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 1ワールドの区画ごとの表示状態（lock を持っている間だけ操作する）
+     */
+    private final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+
+        // 区画の座標（BlockPos.chunkKey でパック）
+        final long areaKey;
+
+        // y=50～HEIGHTでの表示ブロック管理（チャンクごと、表示位置を参照しているプレイヤー数）
+        final LongObjectHashMap<LongIntHashMap> buckets = new LongObjectHashMap<>();
+
+        // アンロード中に書き込めなかった、または後片付けを保留した位置（チャンクごと、読み込み時に照合する）
+        final LongObjectHashMap<LongHashSet> suspended = new LongObjectHashMap<>();
+
+        final WriteQueue queue;
+
+        // 表示ブロックを置いている位置の元のブロック
+        final OriginalStore originals = new OriginalStore();
+
+        // 直前に参照したバケット（スキャン結果は列ごとに並ぶため、同じチャンクが続く）
+        private long lastChunkKey;
+        private LongIntHashMap lastBucket;
+
+        Shard(WorldLayer layer, long areaKey) {
+            this.areaKey = areaKey;
+            this.queue = new WriteQueue(new WorldWriteHandler(layer, this));
+        }
+
+        /**
+         * 表示位置のチャンクのバケット（create=falseで存在しなければnull）
+         */
+        LongIntHashMap bucketOf(long displayPos, boolean create) {
+            long chunkKey = BlockPos.chunkKeyOf(displayPos);
+            if (lastBucket != null && lastChunkKey == chunkKey) return lastBucket;
+
+            LongIntHashMap bucket = create ? buckets.computeIfAbsent(chunkKey, k -> new LongIntHashMap()) : buckets.get(chunkKey);
+            if (bucket != null) {
+                lastChunkKey = chunkKey;
+                lastBucket = bucket;
+            }
+            return bucket;
+        }
+
+        int getCount(long displayPos) {
+            LongIntHashMap bucket = bucketOf(displayPos, false);
+            return bucket != null ? bucket.get(displayPos) : 0;
+        }
+
+        /**
+         * 参照カウントに delta を加える（結果が0以下のエントリ・空のバケットは削除）
+         *
+         * @return 加算後の値
+         */
+        int addTo(long displayPos, int delta) {
+            LongIntHashMap bucket = bucketOf(displayPos, delta > 0);
+            if (bucket == null) return delta;
+
+            int count = bucket.addTo(displayPos, delta);
+            if (count < 0) {
+                // 参照されていなかった位置
+                bucket.remove(displayPos);
+            }
+            if (bucket.isEmpty()) {
+                removeBucket(BlockPos.chunkKeyOf(displayPos));
+            }
+            return count;
+        }
+
+        LongIntHashMap removeBucket(long chunkKey) {
+            if (lastBucket != null && lastChunkKey == chunkKey) lastBucket = null;
+            return buckets.remove(chunkKey);
+        }
+
+        void suspend(long displayPos) {
+            suspended.computeIfAbsent(BlockPos.chunkKeyOf(displayPos), k -> new LongHashSet()).add(displayPos);
+        }
+
+        int size() {
+            int[] count = {0};
+            buckets.forEach((chunkKey, bucket) -> count[0] += bucket.size());
+            return count[0];
+        }
+    }
+
+    /**
+     * 連続する位置の Shard のロックを持ち回る（Shard が変わったときだけ取り直し、同時に2つは持たない）
+     */
+    private static final class ShardLocker implements AutoCloseable {
+        private Shard locked;
+
+        Shard lock(Shard shard) {
+            if (shard != locked) {
+                if (locked != null) locked.lock.unlock();
+                shard.lock.lock();
+                locked = shard;
+            }
+            return shard;
+        }
+
+        @Override
+        public void close() {
+            if (locked != null) {
+                locked.lock.unlock();
+                locked = null;
+            }
+        }
+    }
+
+    @Override
+    public void show(PlayerState state, World world, long sourcePos) {
+        try (ShardLocker locker = new ShardLocker()) {
+            copyBlockToDisplay(state, getLayer(world), locker, sourcePos);
+        }
+    }
+
+    @Override
+    public void hide(PlayerState state, World world, long sourcePos) {
+        WorldLayer layer = layers.get(world.getUID());
+        if (layer == null) return;
+        try (ShardLocker locker = new ShardLocker()) {
+            removeBlockFromDisplay(state, layer, locker, sourcePos, config.getLayout());
+        }
+    }
+
+    @Override
+    public void showBatch(PlayerState state, World world, LongArrayList sourcePositions) {
+        if (sourcePositions.isEmpty()) return;
+
+        // ワールドごとの表示状態は1回だけ引く
+        WorldLayer layer = getLayer(world);
+        try (ShardLocker locker = new ShardLocker()) {
+            sourcePositions.forEach(sourcePos -> copyBlockToDisplay(state, layer, locker, sourcePos));
+        }
+    }
+
+    @Override
+    public void hideBatch(PlayerState state, World world, LongArrayList sourcePositions) {
+        hideBatch(state, world, sourcePositions, config.getLayout());
+    }
+
+    @Override
+    public void hideBatch(PlayerState state, World world, LongArrayList sourcePositions, Config.Layout layout) {
+        if (sourcePositions.isEmpty()) return;
+
+        WorldLayer layer = layers.get(world.getUID());
+        if (layer == null) return;
+        try (ShardLocker locker = new ShardLocker()) {
+            sourcePositions.forEach(sourcePos -> removeBlockFromDisplay(state, layer, locker, sourcePos, layout));
+        }
+    }
+
+    @Override
+    public void refresh(PlayerState state, World world, long sourcePos) {
+        int displayY = config.calculateDisplayY(BlockPos.getY(sourcePos));
+        if (!config.isInDisplayRange(displayY)) return;
+
+        long displayPos = BlockPos.withY(sourcePos, displayY);
+        WorldLayer layer = layers.get(world.getUID());
+        if (layer == null) return;
+
+        Shard shard = layer.findShardOfChunk(BlockPos.getX(displayPos) >> 4, BlockPos.getZ(displayPos) >> 4);
+        if (shard == null) return;
+        shard.lock.lock();
+        try {
+            if (shard.getCount(displayPos) <= 0) return;
+
+            // 置き直しを予約（配置時に対象ブロックを読み直す、複数プレイヤーからの要求は1つにまとまる）
+            shard.queue.enqueueRewrite(displayPos, WriteQueue.priorityOf(state, displayPos));
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    @Override
+    public void hideAll(PlayerState state) {
+        if (state.world == null) return;
+
+        // 可視化ブロック全体の参照カウントを一括で減らす
+        WorldLayer layer = layers.get(state.world.getUID());
+        if (layer == null) return;
+        Config.Layout layout = config.getLayout();
+        try (ShardLocker locker = new ShardLocker()) {
+            state.visibleBlocks.forEach(sourcePos -> removeBlockFromDisplay(state, layer, locker, sourcePos, layout));
+        }
+    }
+
+    @Override
+    public void onChunkUnload(World world, int chunkX, int chunkZ) {
+        WorldLayer layer = layers.get(world.getUID());
+        if (layer == null) return;
+
+        Shard shard = layer.findShardOfChunk(chunkX, chunkZ);
+        if (shard == null) return;
+        shard.lock.lock();
+        try {
+            // 参照カウントはそのまま残し（プレイヤーの可視化範囲は変わらない）、読み込み時にバケット全体を照合する
+            if (config.getChunkUnloadMode() == Config.ChunkUnloadMode.RESTORE) {
+                // チャンクはイベント中はまだ読み込まれているため、保存前に置いている表示ブロックをすべて元に戻す
+                Chunk chunk = world.getChunkAt(chunkX, chunkZ);
+                shard.originals.takeChunk(chunkX, chunkZ, config.getDisplayYMin() >> 4, config.getDisplayYMax() >> 4, (displayPos, originalId) -> {
+                    restoreOriginal(chunk.getBlock(BlockPos.getX(displayPos) & 15, BlockPos.getY(displayPos), BlockPos.getZ(displayPos) & 15), originalId);
+                    layer.recordRemove(displayPos);
+                    tracer.record(Tracer.Type.REMOVE, displayPos, Tracer.NO_SLOT, 0);
+                });
+            }
+
+            LongIntHashMap bucket = shard.buckets.get(BlockPos.chunkKey(chunkX, chunkZ));
+            if (bucket != null) {
+                bucket.forEach((displayPos, count) -> shard.suspend(displayPos));
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    @Override
+    public void onChunksLoaded(World world, LongHashSet chunkKeys, Collection<PlayerState> states) {
+        WorldLayer layer = layers.get(world.getUID());
+        if (layer == null) return;
+
+        // 参照されている位置は対象ブロックの現在の内容で置き直し、参照が外れた位置は削除する
+        try (ShardLocker locker = new ShardLocker()) {
+            chunkKeys.forEach(chunkKey -> {
+                Shard found = layer.findShardOfChunk((int) (chunkKey >> 32), (int) chunkKey);
+                if (found == null) return;
+                Shard shard = locker.lock(found);
+                LongHashSet positions = shard.suspended.remove(chunkKey);
+                if (positions == null) return;
+                positions.forEach(displayPos -> {
+                    if (shard.getCount(displayPos) > 0) {
+                        // 保留中の位置はチャンクに配置済みのため置き直し（後から外れた場合は相殺せずに削除する）
+                        shard.queue.enqueueRewrite(displayPos, RECONCILE_PRIORITY);
+                    } else {
+                        // 配置済みで内容も古いため、後から配置が来ても相殺せずに置き直す
+                        shard.queue.enqueueRemoveStale(displayPos, RECONCILE_PRIORITY);
+                    }
+                });
+            });
+        }
+    }
+
+    @Override
+    public void recover() {
+        File[] files = journalDirectory.listFiles((dir, name) -> name.endsWith(JOURNAL_SUFFIX));
+        if (files == null) return;
+
+        for (File file : files) {
+            World world;
+            try {
+                String name = file.getName();
+                world = plugin.getServer().getWorld(UUID.fromString(name.substring(0, name.length() - JOURNAL_SUFFIX.length())));
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            // 読み込まれていないワールドの記録はそのまま残す
+            if (world == null) continue;
+
+            WorldLayer layer = getLayer(world);
+            if (layer.journal == null) continue;
+
+            // 配置されたままの位置を元に戻す予約をする（書き込みの予算内で複数tickに分けて行う）
+            // アンロード中のチャンクは読み込まず、読み込まれたときに照合する
+            LongIntHashMap originalIds = new LongIntHashMap();
+            LongHashSet placed = layer.journal.readPlaced(originalIds);
+            try (ShardLocker locker = new ShardLocker()) {
+                placed.forEach(displayPos -> {
+                    Shard shard = locker.lock(layer.shardOf(displayPos));
+                    shard.originals.put(displayPos, originalIds.get(displayPos));
+                    if (world.isChunkLoaded(BlockPos.getX(displayPos) >> 4, BlockPos.getZ(displayPos) >> 4)) {
+                        // 前回の表示ブロックが残っているため、後から配置が来ても相殺せずに置き直す
+                        shard.queue.enqueueRemoveStale(displayPos, RECONCILE_PRIORITY);
+                    } else {
+                        shard.suspend(displayPos);
+                    }
+                });
+            }
+            if (!placed.isEmpty()) {
+                plugin.getLogger().info("前回の終了時に残った表示ブロック " + placed.size() + " 個を取り除きます（" + world.getName() + "）");
+            }
+        }
+    }
+
+    private Path getJournalFile(UUID worldId) {
+        return new File(journalDirectory, worldId + JOURNAL_SUFFIX).toPath();
+    }
+
+    /**
+     * y=-50～HEIGHTからy=50～HEIGHTへのブロックコピー
+     */
+    private void copyBlockToDisplay(PlayerState state, WorldLayer layer, ShardLocker locker, long sourcePos) {
+        // 表示Y座標を計算
+        int displayY = config.calculateDisplayY(BlockPos.getY(sourcePos));
+
+        // 表示範囲外の場合は無視
+        if (!config.isInDisplayRange(displayY)) return;
+
+        long displayPos = BlockPos.withY(sourcePos, displayY);
+        Shard shard = locker.lock(layer.shardOf(displayPos));
+
+        // 既に他のプレイヤーが参照している場合はカウントを増やすだけ、初回の場合のみブロックのコピーを予約
+        if (shard.addTo(displayPos, 1) == 1) {
+            shard.queue.enqueuePlace(displayPos, WriteQueue.priorityOf(state, displayPos));
+        }
+    }
+
+    /**
+     * y=50～HEIGHTからのブロック削除
+     *
+     * @param layout 表示位置の対応（設定の再読み込みで位置が変わる場合は前の対応）
+     */
+    private void removeBlockFromDisplay(PlayerState state, WorldLayer layer, ShardLocker locker, long sourcePos, Config.Layout layout) {
+        // 表示Y座標を計算
+        int displayY = layout.calculateDisplayY(BlockPos.getY(sourcePos));
+
+        // 表示範囲外の場合は無視
+        if (!layout.isInDisplayRange(displayY)) return;
+
+        long displayPos = BlockPos.withY(sourcePos, displayY);
+        Shard found = layer.findShardOfChunk(BlockPos.getX(displayPos) >> 4, BlockPos.getZ(displayPos) >> 4);
+        if (found == null) return;
+        Shard shard = locker.lock(found);
+
+        // プレイヤーの参照を削除し、誰も参照していない場合はブロックの削除を予約
+        if (shard.addTo(displayPos, -1) == 0) {
+            shard.queue.enqueueRemove(displayPos, WriteQueue.priorityOf(state, displayPos));
+        }
+    }
+
+    private WorldLayer getLayer(World world) {
+        return layers.computeIfAbsent(world.getUID(), k -> new WorldLayer(world));
+    }
+
+    /**
+     * ワールドへの実際の書き込み
+     * <p>
+     * 操作はチャンクセクションごとにまとめ、セクション単位でチャンクを1回だけ引いて物理演算なしで書き込む。
+     * 既に同じ内容のブロックは書き込まない。
+     * Bukkit API には光源の再計算を遅らせる方法がないため、再計算はサーバーに任せる。
+     * <p>
+     * セクションの書き込みはチャンクを所有するスレッドで行う（Folia ではリージョンに回し、後で実行される）。
+     */
+    private final class WorldWriteHandler implements WriteQueue.Handler {
+        // この数の操作がたまったら途中でも書き込む（書き込み時間の予算の確認が遅れすぎないように）
+        private static final int FLUSH_THRESHOLD = 256;
+
+        private final WorldLayer layer;
+        private final Shard shard;
+
+        // 書き込み待ちの操作（チャンクセクションごと）
+        private final LongObjectHashMap<SectionWrites> sections = new LongObjectHashMap<>();
+        private int pendingCount;
+
+        WorldWriteHandler(WorldLayer layer, Shard shard) {
+            this.layer = layer;
+            this.shard = shard;
+        }
+
+        @Override
+        public void place(long displayPos) {
+            sectionOf(displayPos).places.add(displayPos);
+            if (++pendingCount >= FLUSH_THRESHOLD) flush();
+        }
+
+        @Override
+        public void remove(long displayPos) {
+            sectionOf(displayPos).removes.add(displayPos);
+            if (++pendingCount >= FLUSH_THRESHOLD) flush();
+        }
+
+        @Override
+        public void endBatch() {
+            flush();
+        }
+
+        private SectionWrites sectionOf(long displayPos) {
+            return sections.computeIfAbsent(BlockPos.sectionKeyOf(displayPos), k -> new SectionWrites());
+        }
+
+        private void flush() {
+            if (pendingCount == 0) return;
+            sections.forEach((sectionKey, writes) -> {
+                long firstPos = !writes.places.isEmpty() ? writes.places.get(0) : writes.removes.get(0);
+                scheduling.runAtChunk(layer.world, BlockPos.getX(firstPos) >> 4, BlockPos.getZ(firstPos) >> 4, () -> applySection(writes));
+            });
+            sections.clear();
+            pendingCount = 0;
+        }
+
+        private void applySection(SectionWrites writes) {
+            long firstPos = !writes.places.isEmpty() ? writes.places.get(0) : writes.removes.get(0);
+            int chunkX = BlockPos.getX(firstPos) >> 4;
+            int chunkZ = BlockPos.getZ(firstPos) >> 4;
+            World world = layer.world;
+
+            shard.lock.lock();
+            try {
+                // アンロード中のチャンクは読み込まない（読み込み時に照合する）
+                if (!world.isChunkLoaded(chunkX, chunkZ)) {
+                    writes.places.forEach(shard::suspend);
+                    writes.removes.forEach(shard::suspend);
+                    return;
+                }
+                Chunk chunk = world.getChunkAt(chunkX, chunkZ);
+
+                writes.places.forEach(displayPos -> {
+                    int localX = BlockPos.getX(displayPos) & 15;
+                    int displayY = BlockPos.getY(displayPos);
+                    int localZ = BlockPos.getZ(displayPos) & 15;
+
+                    // ブロックをコピー（実行時点の対象ブロックの内容を使う）
+                    BlockData data = chunk.getBlock(localX, displayY - config.getYOffset(), localZ).getBlockData();
+                    Block displayBlock = chunk.getBlock(localX, displayY, localZ);
+                    BlockData current = displayBlock.getBlockData();
+
+                    // 最初に上書きするときだけ元のブロックを保持する
+                    int originalId = shard.originals.get(displayPos);
+                    if (originalId < 0) {
+                        originalId = palette.idOf(current);
+                        shard.originals.put(displayPos, originalId);
+                    }
+
+                    if (!current.equals(data)) {
+                        displayBlock.setBlockData(data, false);
+                    }
+                    layer.recordPlace(displayPos, originalId);
+                    tracer.record(Tracer.Type.PLACE, displayPos, Tracer.NO_SLOT, 0);
+                });
+
+                writes.removes.forEach(displayPos -> {
+                    // 置いていない位置（アンロード時に元に戻し済みなど）は書き込まない
+                    int originalId = shard.originals.take(displayPos);
+                    if (originalId < 0) return;
+
+                    restoreOriginal(chunk.getBlock(BlockPos.getX(displayPos) & 15, BlockPos.getY(displayPos), BlockPos.getZ(displayPos) & 15), originalId);
+                    layer.recordRemove(displayPos);
+                    tracer.record(Tracer.Type.REMOVE, displayPos, Tracer.NO_SLOT, 0);
+                });
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 表示ブロックを元のブロックに戻す（物理演算なし、同じ内容なら書き込まない）
+     */
+    private void restoreOriginal(Block displayBlock, int originalId) {
+        BlockData original = palette.get(originalId);
+        if (original == null) {
+            if (!displayBlock.getType().isAir()) {
+                displayBlock.setType(Material.AIR, false);
+            }
+        } else if (!displayBlock.getBlockData().equals(original)) {
+            displayBlock.setBlockData(original, false);
+        }
+    }
+
+    /**
+     * 1チャンクセクション分の書き込み待ちの操作
+     */
+    private static final class SectionWrites {
+        final LongArrayList places = new LongArrayList();
+        final LongArrayList removes = new LongArrayList();
+    }
+
+    @Override
+    public int getDisplayedBlockCount(Collection<PlayerState> states) {
+        return layers.values().stream()
+            .mapToInt(WorldLayer::size)
+            .sum();
+    }
+
+    @Override
+    public void cleanup(Collection<PlayerState> states) {
+        if (scheduling.isRegionized()) {
+            // Folia では無効化中にリージョンへ書き込みを回せないため、表示ブロックは残して記録だけを閉じる
+            // （次回の有効化時に recover で取り除く）
+            for (WorldLayer layer : layers.values()) {
+                for (Shard shard : layer.shards.values()) {
+                    writeScheduler.unregister(shard.queue);
+                }
+                if (layer.journal != null) {
+                    layer.journal.close();
+                }
+            }
+            layers.clear();
+            return;
+        }
+
+        // すべての表示ブロックの削除を予約し（保留中の配置は相殺される）、その場で実行
+        // アンロード中のチャンクは読み込まずに残す（restore ではアンロード時に取り除き済み）
+        for (WorldLayer layer : layers.values()) {
+            for (Shard shard : layer.shards.values()) {
+                shard.buckets.forEach((chunkKey, bucket) -> bucket.forEach((displayPos, count) -> shard.queue.enqueueRemove(displayPos, 0)));
+            }
+        }
+        writeScheduler.flushAll();
+
+        // アンロード中のチャンクに残った位置だけを記録に残す
+        for (WorldLayer layer : layers.values()) {
+            for (Shard shard : layer.shards.values()) {
+                writeScheduler.unregister(shard.queue);
+            }
+            if (layer.journal != null) {
+                layer.journal.compact();
+                layer.journal.close();
+            }
+        }
+        layers.clear();
+    }
+}
@@ -0,0 +1,215 @@
+package com.kamesuta.aroundfloor;
+
+import java.util.Arrays;
+
+/**
+ * 表示ブロックの書き込み待ちキュー
+ * <p>
+ * 同じ位置への配置と削除は実行前に相殺される。
+ * 既に配置済みの位置の置き直し（REWRITE）は相殺せず、後から削除が来たら削除に変わる。
+ * 配置するブロックの内容は実行時に対象レイヤーから読み取る。
+ * 実行はプレイヤーに近い（優先度の値が小さい）ものから行う。
+ * 操作は同期化しており、Folia では予約（プレイヤー・チャンクのリージョン）と実行（グローバルリージョン）が
+ * 別のスレッドから行われる。ハンドラーは drain 中にキューのロックを持ったまま呼ばれるため、
+ * Folia ではハンドラーから表示状態のロックを取らない（書き込みはリージョンに回す）。
+ */
+final class WriteQueue {
+    /**
+     * 書き込みの実行先
+     */
+    interface Handler {
+        void place(long displayPos);
+
+        void remove(long displayPos);
+
+        /**
+         * 1回の drain の終わりに呼ばれる
+         */
+        void endBatch();
+    }
+
+    // 操作の種類
+    private static final Object PLACE = new Object();
+    private static final Object REMOVE = new Object();
+    // 配置済みの位置の置き直し（実行は配置と同じ）
+    private static final Object REWRITE = new Object();
+    // 置き直しを取り消した削除（配置済みの内容が古いため、再度配置が来たら置き直しに戻す）
+    private static final Object REMOVE_STALE = new Object();
+
+    private final Handler handler;
+
+    // 位置ごとの保留中の操作（PLACE, REMOVE, REWRITE, REMOVE_STALE）
+    private final LongObjectHashMap<Object> pending = new LongObjectHashMap<>();
+
+    // 優先度付きキュー（二分ヒープ、相殺済みの要素は取り出し時に読み飛ばす）
+    private long[] heapPositions = new long[64];
+    private int[] heapPriorities = new int[64];
+    private int heapSize;
+
+    WriteQueue(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * 配置を予約（保留中の削除があれば相殺）
+     */
+    synchronized void enqueuePlace(long displayPos, int priority) {
+        Object existing = pending.get(displayPos);
+        if (existing == PLACE || existing == REWRITE) return;
+        if (existing == REMOVE) {
+            // まだ削除されていないので何もしなくてよい
+            pending.remove(displayPos);
+            return;
+        }
+        if (existing == REMOVE_STALE) {
+            // 配置済みの内容は古いので置き直す
+            pending.put(displayPos, REWRITE);
+            return;
+        }
+        pending.put(displayPos, PLACE);
+        push(displayPos, priority);
+    }
+
+    /**
+     * 配置済みの位置の置き直しを予約（実行時に対象ブロックを読み直す）
+     * <p>
+     * 実際に配置されている位置にだけ使う。後から削除が来ても相殺せず、削除に変える。
+     */
+    synchronized void enqueueRewrite(long displayPos, int priority) {
+        Object existing = pending.get(displayPos);
+        if (existing == PLACE || existing == REWRITE) return;
+        if (existing != null) {
+            // 保留中の削除は取り消して置き直す（まだ削除されていない）
+            pending.put(displayPos, REWRITE);
+            return;
+        }
+        pending.put(displayPos, REWRITE);
+        push(displayPos, priority);
+    }
+
+    /**
+     * 配置済みで内容が古い位置の削除を予約（異常終了後の残りや、アンロード中に参照が外れた位置）
+     * <p>
+     * 保留中の操作があっても相殺せずに削除に変え、後から配置が来たら置き直しに変わる。
+     */
+    synchronized void enqueueRemoveStale(long displayPos, int priority) {
+        Object existing = pending.put(displayPos, REMOVE_STALE);
+        if (existing == null) {
+            push(displayPos, priority);
+        }
+    }
+
+    /**
+     * 削除を予約（保留中の配置があれば相殺）
+     */
+    synchronized void enqueueRemove(long displayPos, int priority) {
+        Object existing = pending.get(displayPos);
+        if (existing == REMOVE || existing == REMOVE_STALE) return;
+        if (existing == PLACE) {
+            // まだ配置されていないので何もしなくてよい
+            pending.remove(displayPos);
+            return;
+        }
+        if (existing == REWRITE) {
+            // 配置済みなので相殺せずに削除する
+            pending.put(displayPos, REMOVE_STALE);
+            return;
+        }
+        pending.put(displayPos, REMOVE);
+        push(displayPos, priority);
+    }
+
+    /**
+     * 優先度の高いものから実行
+     *
+     * @return 実行した操作数
+     */
+    synchronized int drain(int maxOperations, long deadlineNanos) {
+        int executed = 0;
+        while (heapSize > 0 && executed < maxOperations) {
+            // 時間の確認は32操作ごと
+            if ((executed & 31) == 31 && System.nanoTime() > deadlineNanos) break;
+
+            long displayPos = pop();
+            Object operation = pending.remove(displayPos);
+            if (operation == null) continue; // 相殺済み
+
+            if (operation == REMOVE || operation == REMOVE_STALE) {
+                handler.remove(displayPos);
+            } else {
+                handler.place(displayPos);
+            }
+            executed++;
+        }
+        if (pending.isEmpty()) {
+            heapSize = 0;
+        }
+        if (executed > 0) {
+            handler.endBatch();
+        }
+        return executed;
+    }
+
+    /**
+     * 保留中の操作数
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * 保留中の操作をすべて破棄
+     */
+    synchronized void clear() {
+        pending.clear();
+        heapSize = 0;
+    }
+
+    /**
+     * 優先度 = 基準プレイヤーの中心からの水平距離の2乗
+     */
+    static int priorityOf(PlayerState state, long pos) {
+        int dx = BlockPos.getX(pos) - state.centerX;
+        int dz = BlockPos.getZ(pos) - state.centerZ;
+        return dx * dx + dz * dz;
+    }
+
+    private void push(long pos, int priority) {
+        if (heapSize == heapPositions.length) {
+            heapPositions = Arrays.copyOf(heapPositions, heapSize << 1);
+            heapPriorities = Arrays.copyOf(heapPriorities, heapSize << 1);
+        }
+        int index = heapSize++;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heapPriorities[parent] <= priority) break;
+            heapPositions[index] = heapPositions[parent];
+            heapPriorities[index] = heapPriorities[parent];
+            index = parent;
+        }
+        heapPositions[index] = pos;
+        heapPriorities[index] = priority;
+    }
+
+    private long pop() {
+        long result = heapPositions[0];
+        int size = --heapSize;
+        if (size > 0) {
+            long pos = heapPositions[size];
+            int priority = heapPriorities[size];
+            int index = 0;
+            while (true) {
+                int child = (index << 1) + 1;
+                if (child >= size) break;
+                if (child + 1 < size && heapPriorities[child + 1] < heapPriorities[child]) child++;
+                if (priority <= heapPriorities[child]) break;
+                heapPositions[index] = heapPositions[child];
+                heapPriorities[index] = heapPriorities[child];
+                index = child;
+            }
+            heapPositions[index] = pos;
+            heapPriorities[index] = priority;
+        }
+        return result;
+    }
+}
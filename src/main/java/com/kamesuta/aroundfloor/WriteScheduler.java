@@ -0,0 +1,93 @@
+package com.kamesuta.aroundfloor;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 書き込みキューをtickごとに予算内で実行する
+ * <p>
+ * 予算は1tickあたりの操作数と時間（ミリ秒）で指定する。
+ * キュー間の公平性のため、実行を開始するキューをtickごとにずらす。
+ * Folia ではグローバルリージョンで実行し、実際の書き込みはハンドラーがチャンクを所有するリージョンに回す
+ * （予算はリージョンに回すまでの時間）。キューの登録はどのスレッドからでもよい。
+ */
+final class WriteScheduler {
+    private final AroundFloorPlugin plugin;
+    private final Config config;
+    private final Metrics metrics;
+    private final List<WriteQueue> queues = new CopyOnWriteArrayList<>();
+    private int startIndex;
+    private Scheduling.Task task;
+
+    WriteScheduler(AroundFloorPlugin plugin, Config config, Metrics metrics) {
+        this.plugin = plugin;
+        this.config = config;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 毎tickの実行を開始
+     */
+    void start() {
+        task = plugin.getScheduling().runGlobalTimer(this::tick, 1L, 1L);
+    }
+
+    void register(WriteQueue queue) {
+        queues.add(queue);
+    }
+
+    void unregister(WriteQueue queue) {
+        queues.remove(queue);
+    }
+
+    private void tick() {
+        int size = queues.size();
+        if (size == 0) return;
+
+        int pending = getPendingCount();
+        if (pending == 0) return;
+
+        int budget = config.getWriteBudgetOperations();
+        int remaining = budget;
+        long start = System.nanoTime();
+        long deadline = start + config.getWriteBudgetMillis() * 1_000_000L;
+        startIndex = (startIndex + 1) % size;
+        for (int i = 0; i < size && remaining > 0; i++) {
+            remaining -= queues.get((startIndex + i) % size).drain(remaining, deadline);
+            if (System.nanoTime() > deadline) break;
+        }
+
+        int executed = budget - remaining;
+        metrics.queueDepth.record(pending);
+        metrics.writesPerTick.record(executed);
+        metrics.writeNanosPerTick.record(System.nanoTime() - start);
+        metrics.writes.add(executed);
+    }
+
+    /**
+     * 予算を無視してすべて実行（無効化時）
+     */
+    void flushAll() {
+        for (WriteQueue queue : queues) {
+            metrics.writes.add(queue.drain(Integer.MAX_VALUE, Long.MAX_VALUE));
+        }
+    }
+
+    /**
+     * 保留中の操作数の合計
+     */
+    int getPendingCount() {
+        int count = 0;
+        for (WriteQueue queue : queues) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+}